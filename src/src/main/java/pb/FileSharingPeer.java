@@ -12,6 +12,7 @@ import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -22,7 +23,6 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.commons.codec.binary.Base64;
 
 import pb.managers.ClientManager;
 import pb.managers.IOThread;
@@ -97,9 +97,20 @@ public class FileSharingPeer {
 	private static int chunkSize=Utils.chunkSize;
 	
 	/**
-	 * buffer for file reading
+	 * buffer for file reading, for each thread that transmits files
 	 */
-	private static byte[] buffer = new byte[chunkSize];
+	private static final ThreadLocal<byte[]> buffers =
+			ThreadLocal.withInitial(()->new byte[chunkSize]);
+	
+	/**
+	 * buffer for the Base64 encoding of a chunk, for each thread that
+	 * transmits files, so that full chunks are encoded without allocating
+	 * anything but the string that is sent
+	 */
+	private static final ThreadLocal<byte[]> encodedBuffers =
+			ThreadLocal.withInitial(()->new byte[4*((chunkSize+2)/3)]);
+	private static final Base64.Encoder encoder = Base64.getEncoder();
+	private static final Base64.Decoder decoder = Base64.getDecoder();
 	
 	/**
 	 * Read up to chunkSize bytes of a file and send to client.
@@ -113,14 +124,17 @@ public class FileSharingPeer {
 	 * @param endpoint the endpoint to send the file
 	 */
 	public static void continueTransmittingFile(InputStream in,Endpoint endpoint) {
+		byte[] buffer = buffers.get();
+		byte[] encoded = encodedBuffers.get();
 		try {
 			int read = in.read(buffer);
 			if(read==-1) {
 				endpoint.emit(fileContents, ""); // signals no more bytes in file
 				in.close();
 			} else {
-				endpoint.emit(fileContents, new String(Base64.encodeBase64(
-						Arrays.copyOfRange(buffer, 0, read)),
+				int length = encoder.encode(read==chunkSize ? buffer :
+						Arrays.copyOfRange(buffer, 0, read), encoded);
+				endpoint.emit(fileContents, new String(encoded, 0, length,
 						StandardCharsets.US_ASCII));
 				if(read<chunkSize) {
 					endpoint.emit(fileContents, "");
@@ -291,7 +305,7 @@ public class FileSharingPeer {
 						clientManager.shutdown();
 					} else {
 						try {
-							out.write(Base64.decodeBase64(chunk));
+							out.write(decoder.decode(chunk));
 						} catch (IOException e) {
 							System.out.println("Error writing file chunk: "+chunk);
 						}
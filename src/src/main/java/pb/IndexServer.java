@@ -213,6 +213,7 @@ public class IndexServer {
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
         options.addOption("password",true,"password for server");
+        options.addOption("unix",true,"path of a Unix domain socket to listen on instead of the port");
         
        
         CommandLineParser parser = new DefaultParser();
@@ -235,10 +236,12 @@ public class IndexServer {
         // create a server manager and setup event handlers
         ServerManager serverManager;
         
+        String address = cmd.hasOption("unix") ?
+        		Utils.unixScheme+cmd.getOptionValue("unix") : Integer.toString(port);
         if(cmd.hasOption("password")) {
-        	serverManager = new ServerManager(port,cmd.getOptionValue("password"));
+        	serverManager = new ServerManager(address,cmd.getOptionValue("password"));
         } else {
-        	serverManager = new ServerManager(port);
+        	serverManager = new ServerManager(address);
         }
         
         // event handlers
@@ -0,0 +1,143 @@
+package pb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import pb.managers.ClientManager;
+import pb.managers.IOThread;
+import pb.managers.ServerManager;
+import pb.managers.endpoint.Endpoint;
+import pb.utils.Utils;
+
+/**
+ * Simulation main. Runs a server and many clients in this JVM, connected
+ * over {@link pb.managers.endpoint.LoopbackConnection}s, with each client
+ * sending events to the server one at a time and waiting for each to be
+ * echoed back. The time taken is that of the managers, endpoints and
+ * protocols alone, without the kernel's network stack.
+ *
+ * @see {@link pb.managers.endpoint.LoopbackConnection}
+ * @see {@link pb.managers.ServerManager}
+ * @see {@link pb.managers.ClientManager}
+ * @author aaron
+ *
+ */
+public class LoopbackSimulation {
+	private static Logger log = Logger.getLogger(LoopbackSimulation.class.getName());
+	private static int peers=100; // default number of clients
+	private static int events=100; // default number of events each client sends
+	private static String address=Utils.localScheme+"simulation";
+
+	/**
+	 * Sent by a client, and echoed back by the server.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String ping = "PING";
+	public static final String pong = "PONG";
+
+	private static void help(Options options){
+		String header = "PB Loopback Simulation for Unimelb COMP90015\n\n";
+		String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("pb.LoopbackSimulation", header, options, footer, true);
+		System.exit(-1);
+	}
+
+	public static void main( String[] args ) throws Exception
+    {
+    	// set a nice log format
+		System.setProperty("java.util.logging.SimpleFormatter.format",
+                "[%1$tl:%1$tM:%1$tS:%1$tL] %2$s %4$s: %5$s%n");
+
+    	// parse command line options
+        Options options = new Options();
+        options.addOption("peers",true,"number of clients, an integer");
+        options.addOption("events",true,"number of events each client sends, an integer");
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = null;
+        try {
+			cmd = parser.parse( options, args);
+		} catch (ParseException e1) {
+			help(options);
+		}
+
+        try{
+        	if(cmd.hasOption("peers")) peers = Integer.parseInt(cmd.getOptionValue("peers"));
+        	if(cmd.hasOption("events")) events = Integer.parseInt(cmd.getOptionValue("events"));
+		} catch (NumberFormatException e){
+			System.out.println("-peers and -events require integers");
+			help(options);
+		}
+
+        log.info("PB Loopback Simulation starting up: "+peers+" peers, "+events+" events each");
+
+        // the server echoes every event back
+        ServerManager serverManager = new ServerManager(address);
+        CountDownLatch listening = new CountDownLatch(1);
+        serverManager.on(IOThread.ioThread, (args2)->{
+        	listening.countDown();
+        }).on(ServerManager.sessionStarted, (args2)->{
+        	Endpoint endpoint = (Endpoint)args2[0];
+        	endpoint.on(ping, (args3)->{
+        		endpoint.emit(pong, (String)args3[0]);
+        	});
+        });
+        serverManager.start();
+        listening.await();
+
+        // each client sends its next event when the last one comes back
+        CountDownLatch done = new CountDownLatch(peers);
+        AtomicLong roundTrips = new AtomicLong();
+        AtomicLong roundTripNanos = new AtomicLong();
+        List<ClientManager> clientManagers = new ArrayList<>();
+        long start=System.nanoTime();
+        for(int i=0;i<peers;i++) {
+        	ClientManager clientManager = new ClientManager(address);
+        	AtomicLong sent = new AtomicLong();
+        	clientManager.on(ClientManager.sessionStarted, (args2)->{
+        		Endpoint endpoint = (Endpoint)args2[0];
+        		endpoint.on(pong, (args3)->{
+        			roundTrips.incrementAndGet();
+        			roundTripNanos.addAndGet(System.nanoTime()-Long.parseLong((String)args3[0]));
+        			if(sent.incrementAndGet()<events) {
+        				endpoint.emit(ping, Long.toString(System.nanoTime()));
+        			} else {
+        				done.countDown();
+        			}
+        		});
+        		endpoint.emit(ping, Long.toString(System.nanoTime()));
+        	});
+        	clientManagers.add(clientManager);
+        	clientManager.start();
+        }
+        if(!done.await(10, TimeUnit.MINUTES)) log.severe("simulation did not finish in time");
+        long nanos=System.nanoTime()-start;
+        log.info(String.format("%d round trips in %.2f s, %.0f per second, mean round trip %.3f ms",
+        		roundTrips.get(),nanos/1e9,roundTrips.get()/(nanos/1e9),
+        		roundTripNanos.get()/1e6/Math.max(1,roundTrips.get())));
+
+        for(ClientManager clientManager : clientManagers) {
+        	clientManager.shutdown();
+        }
+        for(ClientManager clientManager : clientManagers) {
+        	clientManager.join();
+        }
+        serverManager.shutdown();
+        serverManager.join();
+        Utils.getInstance().cleanUp();
+    }
+}
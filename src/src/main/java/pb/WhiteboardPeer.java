@@ -36,6 +36,36 @@ public class WhiteboardPeer {
 	 * host to use when contacting the index server
 	 */
 	private static String host=Utils.serverHost; // default host for the index server
+
+	/**
+	 * tolerance in pixels for simplifying paths drawn locally
+	 */
+	private static double pathTolerance=Utils.pathTolerance;
+
+	/**
+	 * minimum distance in pixels between points of paths drawn locally
+	 */
+	private static double pathMinDistance=Utils.pathMinDistance;
+
+	/**
+	 * whether to smooth paths when drawing them
+	 */
+	private static boolean pathSmoothing=Utils.pathSmoothing;
+
+	/**
+	 * directory to journal boards in, or null to not journal them
+	 */
+	private static String journalDirectory=null;
+
+	/**
+	 * whether boards created by this peer are CRDT boards
+	 */
+	private static boolean crdtBoards=false;
+
+	/**
+	 * megabytes of board images to cache for switching between boards
+	 */
+	private static long rasterCacheMegabytes=Utils.rasterCacheBytes/(1024*1024);
 	
 	/**
 	 * Print some help.
@@ -58,6 +88,12 @@ public class WhiteboardPeer {
         options.addOption("port",true,"peer server port, an integer");
         options.addOption("host",true,"whiteboard server hostname, a string");
         options.addOption("whiteboardServerPort",true,"whiteboard server port, an integer");
+        options.addOption("tolerance",true,"path simplification tolerance in pixels, a number, 0 to not simplify");
+        options.addOption("minDistance",true,"minimum distance in pixels between path points, a number");
+        options.addOption("smooth",false,"smooth paths when drawing them");
+        options.addOption("journal",true,"directory to journal boards in so they survive a restart, a string");
+        options.addOption("crdt",false,"create boards that peers update without waiting for the host");
+        options.addOption("rasterCache",true,"megabytes of board images to cache for switching between boards, an integer");
 		
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
@@ -91,7 +127,52 @@ public class WhiteboardPeer {
         	host = cmd.getOptionValue("host");
         }
         
-		WhiteboardApp whiteboard = new WhiteboardApp(peerPort,host,whiteboardServerPort);
+        if(cmd.hasOption("tolerance")) {
+        	try{
+        		pathTolerance = Double.parseDouble(cmd.getOptionValue("tolerance"));
+			} catch (NumberFormatException e){
+				System.out.println("-tolerance requires a number, parsed: "+
+						cmd.getOptionValue("tolerance"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("minDistance")) {
+        	try{
+        		pathMinDistance = Double.parseDouble(cmd.getOptionValue("minDistance"));
+			} catch (NumberFormatException e){
+				System.out.println("-minDistance requires a number, parsed: "+
+						cmd.getOptionValue("minDistance"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("smooth")) {
+        	pathSmoothing = true;
+        }
+        
+        if(cmd.hasOption("journal")) {
+        	journalDirectory = cmd.getOptionValue("journal");
+        }
+        
+        if(cmd.hasOption("crdt")) {
+        	crdtBoards = true;
+        }
+        
+        if(cmd.hasOption("rasterCache")) {
+        	try{
+        		rasterCacheMegabytes = Long.parseLong(cmd.getOptionValue("rasterCache"));
+			} catch (NumberFormatException e){
+				System.out.println("-rasterCache requires a number of megabytes, parsed: "+
+						cmd.getOptionValue("rasterCache"));
+				help(options);
+			}
+        }
+        
+		WhiteboardApp whiteboard = new WhiteboardApp(peerPort,host,whiteboardServerPort,
+				pathTolerance,pathMinDistance,pathSmoothing,journalDirectory);
+		whiteboard.setCrdtBoards(crdtBoards);
+		whiteboard.setRasterCacheBytes(rasterCacheMegabytes*1024*1024);
 		whiteboard.waitToFinish();
 		Utils.getInstance().cleanUp();
 	}
@@ -106,6 +106,9 @@ public class WhiteboardServer {
 		Options options = new Options();
 		options.addOption("port",true,"server port, an integer");
 		options.addOption("password",true,"password for server");
+		options.addOption("unix",true,"path of a Unix domain socket to listen on instead of the port");
+		options.addOption("acceptors",true,"number of threads accepting connections, an integer");
+		options.addOption("backlog",true,"length of the queue of pending connections, an integer");
 
 
 		CommandLineParser parser = new DefaultParser();
@@ -128,10 +131,27 @@ public class WhiteboardServer {
 		// create a server manager and setup event handlers
 		ServerManager serverManager;
 
+		String address = cmd.hasOption("unix") ?
+				Utils.unixScheme+cmd.getOptionValue("unix") : Integer.toString(port);
 		if(cmd.hasOption("password")) {
-			serverManager = new ServerManager(port,cmd.getOptionValue("password"));
+			serverManager = new ServerManager(address,cmd.getOptionValue("password"));
 		} else {
-			serverManager = new ServerManager(port);
+			serverManager = new ServerManager(address);
+		}
+
+		if(cmd.hasOption("acceptors") || cmd.hasOption("backlog")) {
+			int acceptors = Utils.acceptorThreads;
+			int backlog = Utils.acceptBacklog;
+			try{
+				if(cmd.hasOption("acceptors"))
+					acceptors = Integer.parseInt(cmd.getOptionValue("acceptors"));
+				if(cmd.hasOption("backlog"))
+					backlog = Integer.parseInt(cmd.getOptionValue("backlog"));
+			} catch (NumberFormatException e){
+				System.out.println("-acceptors and -backlog require integers");
+				help(options);
+			}
+			serverManager.setAcceptOptions(acceptors,backlog);
 		}
 
 		/**
@@ -0,0 +1,236 @@
+package pb.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+import pb.utils.Utils;
+
+/**
+ * A durable journal of the operations on a board managed by this peer, so
+ * that the board can be rebuilt when the peer restarts. There are two files
+ * per board in the journal directory: "boardid.snapshot" has the board as
+ * "version%PATHS", and "boardid.journal" has the operations accepted since,
+ * in the format of {@link OperationLog}.
+ * <br/>
+ * The journal is memory mapped, a segment of
+ * {@link pb.utils.Utils#journalSegmentSize} bytes at a time, and each record
+ * is the length of the operation, the version it was applied to and the
+ * operation in UTF-8. The length is written last, so a record torn by a
+ * crash reads as the end of the journal. Appends are forced to disk together
+ * every {@link pb.utils.Utils#journalForceInterval} ms rather than one by
+ * one. Every {@link pb.utils.Utils#journalSnapshotInterval} operations the
+ * board is written to the snapshot and the journal is emptied, so rebuilding
+ * a board only replays the operations since the last snapshot.
+ *
+ * @see {@link pb.app.Whiteboard}
+ * @author aaron
+ *
+ */
+public class BoardJournal {
+	private static Logger log = Logger.getLogger(BoardJournal.class.getName());
+
+	/**
+	 * Size in bytes of the length and version of a record.
+	 */
+	private static final int headerSize = 4+8;
+
+	private final Path journalPath;
+	private final Path snapshotPath;
+
+	private final FileChannel channel;
+
+	/**
+	 * The segment being appended to, or null if none is mapped.
+	 */
+	private MappedByteBuffer map;
+
+	/**
+	 * Offset in the file of the segment being appended to.
+	 */
+	private long mapStart;
+
+	/**
+	 * Offset in the file of the end of the last record.
+	 */
+	private long end;
+
+	/**
+	 * Number of records since the last snapshot.
+	 */
+	private int records=0;
+
+	/**
+	 * Whether a timeout to force the journal to disk has been set.
+	 */
+	private boolean forceScheduled=false;
+
+	/**
+	 * Open the journal of a board, creating it if it does not exist.
+	 * @param directory of the journal
+	 * @param boardId id of the board, without the peer:port
+	 * @throws IOException
+	 */
+	public BoardJournal(File directory, String boardId) throws IOException {
+		journalPath = new File(directory,boardId+".journal").toPath();
+		snapshotPath = new File(directory,boardId+".snapshot").toPath();
+		channel = FileChannel.open(journalPath,StandardOpenOption.CREATE,
+				StandardOpenOption.READ,StandardOpenOption.WRITE);
+		end = replay(null);
+	}
+
+	/**
+	 * Rebuild a board from its snapshot and the operations after it.
+	 * @param whiteboard a new board with the name the board should have
+	 * @throws IOException
+	 */
+	public synchronized void restore(Whiteboard whiteboard) throws IOException {
+		if(Files.exists(snapshotPath)) {
+			String data = new String(Files.readAllBytes(snapshotPath),StandardCharsets.UTF_8);
+			whiteboard.whiteboardFromString(whiteboard.getName(),data);
+		}
+		replay(whiteboard);
+	}
+
+	/**
+	 * Read the records of the journal, replaying them on a board.
+	 * @param whiteboard or null to only find the end of the journal
+	 * @return the offset of the end of the last complete record
+	 * @throws IOException
+	 */
+	private long replay(Whiteboard whiteboard) throws IOException {
+		long size = channel.size();
+		if(size==0) return 0;
+		MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY,0,size);
+		int replayed=0;
+		while(in.remaining()>=headerSize) {
+			int start = in.position();
+			int length = in.getInt();
+			if(length<=0 || in.remaining()<8+length) {
+				in.position(start);
+				break;
+			}
+			long version = in.getLong();
+			byte[] op = new byte[length];
+			in.get(op);
+			replayed++;
+			if(whiteboard!=null) {
+				whiteboard.replay(version,new String(op,StandardCharsets.UTF_8));
+			}
+		}
+		records=replayed;
+		return in.position();
+	}
+
+	/**
+	 * Append an operation.
+	 * @param version of the board the operation was applied to
+	 * @param op in the format of {@link OperationLog}
+	 * @return true if it is time for a {@link #snapshot(long, String)}
+	 */
+	public synchronized boolean append(long version, String op) {
+		byte[] bytes = op.getBytes(StandardCharsets.UTF_8);
+		try {
+			if(map==null || map.remaining()<headerSize+bytes.length) {
+				// the records in the old segment go to disk before it is
+				// dropped, as the timed force only forces the current one
+				if(map!=null) map.force();
+				// the new segment starts where the records end, so it
+				// covers any unused part of the old one
+				mapStart=end;
+				map = channel.map(FileChannel.MapMode.READ_WRITE,mapStart,
+						Math.max(Utils.journalSegmentSize,headerSize+bytes.length));
+			}
+		} catch (IOException e) {
+			log.severe("could not map the journal "+journalPath+": "+e.getMessage());
+			return false;
+		}
+		int start = map.position();
+		map.position(start+4);
+		map.putLong(version);
+		map.put(bytes);
+		map.putInt(start,bytes.length);
+		end=mapStart+map.position();
+		records++;
+		if(!forceScheduled) {
+			forceScheduled=true;
+			Utils.getInstance().setTimeout(()->{
+				force();
+			}, Utils.journalForceInterval);
+		}
+		return records>=Utils.journalSnapshotInterval;
+	}
+
+	/**
+	 * Force the records appended to disk.
+	 */
+	private synchronized void force() {
+		forceScheduled=false;
+		if(map!=null) map.force();
+	}
+
+	/**
+	 * Write a snapshot of the board and empty the journal.
+	 * @param version of the board
+	 * @param paths of the board, as in {@link Whiteboard#toString()}
+	 */
+	public synchronized void snapshot(long version, String paths) {
+		Path temp = snapshotPath.resolveSibling(snapshotPath.getFileName()+".tmp");
+		try (FileChannel out = FileChannel.open(temp,StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE,StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer data = ByteBuffer.wrap((version+paths).getBytes(StandardCharsets.UTF_8));
+			while(data.hasRemaining()) out.write(data);
+			out.force(true);
+		} catch (IOException e) {
+			log.severe("could not write the snapshot "+temp+": "+e.getMessage());
+			return;
+		}
+		try {
+			Files.move(temp,snapshotPath,StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			// records before the snapshot are skipped if the journal is
+			// not emptied, since their versions are older
+			if(map!=null) map.force();
+			map=null;
+			channel.truncate(0);
+			end=0;
+			records=0;
+		} catch (IOException e) {
+			log.severe("could not replace the snapshot "+snapshotPath+": "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Close the journal, forcing it to disk.
+	 */
+	public synchronized void close() {
+		force();
+		map=null;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing more to do
+		}
+	}
+
+	/**
+	 * Close and delete the journal, when the board is deleted.
+	 */
+	public synchronized void delete() {
+		close();
+		try {
+			Files.deleteIfExists(journalPath);
+			Files.deleteIfExists(snapshotPath);
+		} catch (IOException e) {
+			log.warning("could not delete the journal "+journalPath+": "+e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package pb.app;
+
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+import pb.utils.Utils;
+
+/**
+ * The only thread that draws on the {@link DrawArea}. Other threads, i.e.
+ * endpoint threads as board updates arrive and the event dispatch thread as
+ * the user draws, only ask for a board to be drawn and return. Whatever has
+ * been asked for since the last frame is coalesced into the next one: a
+ * burst of updates to the board shown is drawn as one set of changes, and a
+ * request to show or redraw a board replaces anything asked for before it.
+ * <br/>
+ * Frames are drawn at most {@link pb.utils.Utils#maxFrameRate} times a second
+ * on the back buffer of the draw area, which is then presented to the event
+ * dispatch thread. The time taken by frames is logged every
+ * {@link pb.utils.Utils#renderStatsInterval} ms.
+ *
+ * @see {@link pb.app.DrawArea}
+ * @author aaron
+ *
+ */
+public class BoardRenderer extends Thread {
+	private static Logger log = Logger.getLogger(BoardRenderer.class.getName());
+
+	/**
+	 * What the next frame does with a board, in increasing order of how
+	 * much it draws.
+	 */
+	private static final int none = 0;
+	private static final int changes = 1;
+	private static final int show = 2;
+	private static final int redraw = 3;
+	private static final int clear = 4;
+
+	private final DrawArea drawArea;
+
+	/**
+	 * The board the draw area shows, as of the requests so far.
+	 */
+	private Whiteboard displayed;
+
+	/**
+	 * What the next frame does, and to which board.
+	 */
+	private int action=none;
+	private Whiteboard target;
+
+	/**
+	 * Paths to draw over the board in the next frame: strokes still being
+	 * drawn by other peers, and ink of the stroke being drawn here.
+	 */
+	private ArrayList<WhiteboardPath> overlays = new ArrayList<>();
+	private ArrayList<WhiteboardPath> ink = new ArrayList<>();
+
+	/**
+	 * Frame metrics since they were last logged.
+	 */
+	private int frames=0;
+	private int requests=0;
+	private long frameNanos=0;
+	private long maxFrameNanos=0;
+	private long lastStats=System.currentTimeMillis();
+
+	/**
+	 *
+	 * @param drawArea
+	 */
+	public BoardRenderer(DrawArea drawArea) {
+		super("board renderer");
+		this.drawArea=drawArea;
+		setDaemon(true);
+	}
+
+	/**
+	 * Draw what has changed on a board since it was last drawn, if it is the
+	 * board shown.
+	 * @param board
+	 */
+	public synchronized void drawChanges(Whiteboard board) {
+		if(board!=displayed) return;
+		if(action<changes) {
+			action=changes;
+			target=board;
+		}
+		requested();
+	}
+
+	/**
+	 * Show a board, from its cached image if there is one.
+	 * @param board
+	 */
+	public synchronized void show(Whiteboard board) {
+		replace(board==target && action>show ? action : show,board);
+	}
+
+	/**
+	 * Draw a board from the start.
+	 * @param board or null to only clear the draw area
+	 */
+	public synchronized void redraw(Whiteboard board) {
+		replace(board==null ? clear : redraw,board);
+	}
+
+	/**
+	 * Draw the board shown from the start, when the view of it changes.
+	 */
+	public synchronized void redraw() {
+		replace(displayed==null ? clear : redraw,displayed);
+	}
+
+	/**
+	 * Clear the draw area.
+	 */
+	public synchronized void clear() {
+		replace(clear,null);
+	}
+
+	/**
+	 * Draw a path over the board, which goes when the board is redrawn.
+	 * @param path
+	 */
+	public synchronized void drawPath(WhiteboardPath path) {
+		overlays.add(path);
+		requested();
+	}
+
+	/**
+	 * Draw ink of the stroke being drawn on the draw area.
+	 * @param path
+	 */
+	public synchronized void drawInk(WhiteboardPath path) {
+		ink.add(path);
+		requested();
+	}
+
+	/**
+	 * Anything asked for before is no longer shown.
+	 */
+	private void replace(int newAction, Whiteboard board) {
+		displayed=board;
+		action=newAction;
+		target=board;
+		overlays.clear();
+		ink.clear();
+		requested();
+	}
+
+	private void requested() {
+		requests++;
+		notify();
+	}
+
+	private boolean pending() {
+		return action!=none || !overlays.isEmpty() || !ink.isEmpty();
+	}
+
+	@Override
+	public void run() {
+		long frameInterval = 1000/Utils.maxFrameRate;
+		long lastFrame=0;
+		try {
+			while(!isInterrupted()) {
+				synchronized(this) {
+					while(!pending()) wait();
+				}
+				// requests that arrive until the next frame is due are
+				// drawn with it
+				long due = lastFrame+frameInterval-System.currentTimeMillis();
+				if(due>0) Thread.sleep(due);
+				lastFrame=System.currentTimeMillis();
+				frame();
+			}
+		} catch (InterruptedException e) {
+			// shutting down
+		}
+		log.info("board renderer stopped");
+	}
+
+	/**
+	 * Draw everything asked for since the last frame, and present it.
+	 */
+	private void frame() {
+		int frameAction;
+		Whiteboard board;
+		ArrayList<WhiteboardPath> frameOverlays;
+		ArrayList<WhiteboardPath> frameInk;
+		synchronized(this) {
+			frameAction=action;
+			board=target;
+			frameOverlays=overlays;
+			frameInk=ink;
+			action=none;
+			target=null;
+			overlays = new ArrayList<>();
+			ink = new ArrayList<>();
+		}
+		long start=System.nanoTime();
+		try {
+			synchronized(drawArea) {
+				// the draw area may have been resized since the last frame
+				drawArea.fitImage();
+				switch(frameAction) {
+				case changes:
+					board.drawChanges(drawArea);
+					break;
+				case show:
+					board.show(drawArea);
+					break;
+				case redraw:
+					board.draw(drawArea);
+					break;
+				case clear:
+					drawArea.clear();
+					break;
+				}
+				for(WhiteboardPath path : frameOverlays) {
+					drawArea.drawPath(path);
+				}
+				for(WhiteboardPath path : frameInk) {
+					drawArea.drawInk(path);
+				}
+				drawArea.present();
+			}
+		} catch (RuntimeException e) {
+			log.severe("could not draw a frame: "+e.getMessage());
+		}
+		metrics(System.nanoTime()-start);
+	}
+
+	private void metrics(long nanos) {
+		int coalesced;
+		synchronized(this) {
+			coalesced=requests;
+			frames++;
+			frameNanos+=nanos;
+			maxFrameNanos=Math.max(maxFrameNanos,nanos);
+			long now=System.currentTimeMillis();
+			if(now-lastStats<Utils.renderStatsInterval) return;
+			log.info(String.format("%d frames for %d requests, frame time %.2f ms mean %.2f ms max",
+					frames,coalesced,frameNanos/1e6/frames,maxFrameNanos/1e6));
+			frames=0;
+			requests=0;
+			frameNanos=0;
+			maxFrameNanos=0;
+			lastStats=now;
+		}
+	}
+
+	/**
+	 * Stop drawing frames.
+	 */
+	public void shutdown() {
+		interrupt();
+	}
+}
@@ -0,0 +1,298 @@
+package pb.app;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import pb.utils.PersistentVector;
+import pb.utils.Utils;
+
+/**
+ * The image of a board at a zoom scale, as square tiles of
+ * {@link pb.utils.Utils#tileSize} pixels, so that any part of a board that
+ * has no bounds can be drawn by putting together the tiles it covers. Tiles
+ * are drawn when they are first needed, those missing from a view all at once
+ * on the common fork-join pool, and kept, least recently used first out, up
+ * to {@link pb.utils.Utils#tileCacheBytes}. A tile with no paths on it is
+ * not kept, only left white.
+ * <br/>
+ * The tiles follow the paths of one board: when paths are added or removed,
+ * only the tiles that the paths cross are drawn again. The paths of each
+ * tile are found with the index of the board, {@link Whiteboard#pathsIn},
+ * or if the board has changed since the tiles were brought up to date, by
+ * going through the paths the tiles are of. This class is not thread safe;
+ * the draw area it belongs to synchronizes it.
+ *
+ * @see {@link pb.app.DrawArea}
+ * @author aaron
+ *
+ */
+public class BoardTiles {
+
+	/**
+	 * Pixels around the points of a path that it draws on, at a scale of 1.
+	 */
+	private static final int margin = 2;
+
+	private final int tileSize;
+
+	/**
+	 * Pixels of the image for each pixel of the board.
+	 */
+	private double scale=1;
+
+	private boolean smoothing=false;
+
+	/**
+	 * The board the tiles are of, and its paths when the tiles were last
+	 * brought up to date.
+	 */
+	private Whiteboard board;
+	private PersistentVector<WhiteboardPath> paths = PersistentVector.empty();
+
+	/**
+	 * Tiles drawn, least recently used first, by {@link #tileKey(int, int)}.
+	 */
+	private final LinkedHashMap<Long,BufferedImage> tiles = new LinkedHashMap<>(64,0.75f,true);
+	private long bytes=0;
+
+	public BoardTiles() {
+		this(Utils.tileSize);
+	}
+
+	/**
+	 *
+	 * @param tileSize in pixels
+	 */
+	public BoardTiles(int tileSize) {
+		this.tileSize=tileSize;
+	}
+
+	/**
+	 * Bring the tiles up to date with the paths of a board, dropping the
+	 * tiles crossed by the paths removed or added since they were last
+	 * brought up to date.
+	 * @param board
+	 * @param now the paths of the board now
+	 * @param unchanged how many of the first paths are the same as when the
+	 * tiles were last brought up to date with the board
+	 */
+	public void update(Whiteboard board, PersistentVector<WhiteboardPath> now, int unchanged) {
+		if(board!=this.board || unchanged==0) {
+			this.board=board;
+			paths=now;
+			dropTiles();
+			return;
+		}
+		unchanged=Math.min(unchanged,paths.size());
+		for(int i=paths.size()-1;i>=unchanged;i--) {
+			invalidate(paths.get(i));
+		}
+		for(int i=unchanged;i<now.size();i++) {
+			invalidate(now.get(i));
+		}
+		paths=now;
+	}
+
+	/**
+	 * Drop the tiles of a board, when the board is deleted.
+	 * @param board
+	 */
+	public void forget(Whiteboard board) {
+		if(board!=this.board) return;
+		this.board=null;
+		paths=PersistentVector.empty();
+		dropTiles();
+	}
+
+	/**
+	 * Set the zoom scale, which drops every tile if it changes.
+	 * @param scale pixels of the image for each pixel of the board
+	 */
+	public void setScale(double scale) {
+		if(scale==this.scale) return;
+		this.scale=scale;
+		dropTiles();
+	}
+
+	/**
+	 * Set whether paths are smoothed when drawn, which drops every tile if
+	 * it changes.
+	 * @param smoothing
+	 */
+	public void setSmoothing(boolean smoothing) {
+		if(smoothing==this.smoothing) return;
+		this.smoothing=smoothing;
+		dropTiles();
+	}
+
+	/**
+	 * Draw a view of the board, drawing any tiles of it that are missing in
+	 * parallel first.
+	 * @param g to draw on, with no transform
+	 * @param viewX left of the view, in pixels of the image at the scale
+	 * @param viewY top of the view, in pixels of the image at the scale
+	 * @param width
+	 * @param height
+	 */
+	public void draw(Graphics2D g, int viewX, int viewY, int width, int height) {
+		int tx0 = Math.floorDiv(viewX,tileSize), ty0 = Math.floorDiv(viewY,tileSize);
+		int tx1 = Math.floorDiv(viewX+width-1,tileSize), ty1 = Math.floorDiv(viewY+height-1,tileSize);
+		List<TileAction> missing = new ArrayList<>();
+		if(board!=null) {
+			// the index is queried here, only the drawing is parallel
+			synchronized(board) {
+				// a tile with paths the tiles are not of would not be dropped
+				// when the tiles are brought up to date with them
+				boolean current = board.getPaths()==paths;
+				for(int tx=tx0;tx<=tx1;tx++) {
+					for(int ty=ty0;ty<=ty1;ty++) {
+						if(tiles.containsKey(tileKey(tx,ty))) continue;
+						Rectangle area = boardArea(tx,ty);
+						List<WhiteboardPath> tilePaths = current ? board.pathsIn(area) : pathsIn(area);
+						if(!tilePaths.isEmpty()) missing.add(new TileAction(tx,ty,tilePaths));
+					}
+				}
+			}
+		}
+		ForkJoinTask.invokeAll(missing);
+		for(TileAction action : missing) {
+			tiles.put(tileKey(action.tx,action.ty),action.image);
+			bytes+=bytesOf(action.image);
+		}
+		g.setPaint(Color.white);
+		g.fillRect(0, 0, width, height);
+		for(int tx=tx0;tx<=tx1;tx++) {
+			for(int ty=ty0;ty<=ty1;ty++) {
+				BufferedImage tile = tiles.get(tileKey(tx,ty));
+				if(tile!=null) g.drawImage(tile,tx*tileSize-viewX,ty*tileSize-viewY,null);
+			}
+		}
+		evict();
+	}
+
+	/**
+	 * Draws the paths of a tile on an image of its own.
+	 */
+	@SuppressWarnings("serial")
+	private class TileAction extends RecursiveAction {
+		final int tx;
+		final int ty;
+		final List<WhiteboardPath> tilePaths;
+		BufferedImage image;
+
+		TileAction(int tx, int ty, List<WhiteboardPath> tilePaths) {
+			this.tx=tx;
+			this.ty=ty;
+			this.tilePaths=tilePaths;
+		}
+
+		@Override
+		protected void compute() {
+			image = new BufferedImage(tileSize,tileSize,BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = image.createGraphics();
+			g.setPaint(Color.white);
+			g.fillRect(0, 0, tileSize, tileSize);
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g.translate(-tx*tileSize,-ty*tileSize);
+			g.scale(scale,scale);
+			for(WhiteboardPath path : tilePaths) {
+				if(smoothing) path = PathSimplifier.smooth(path);
+				path.drawOnBoard(g);
+			}
+			g.dispose();
+		}
+	}
+
+	/**
+	 *
+	 * @return the area of the board that can draw on a tile
+	 */
+	private Rectangle boardArea(int tx, int ty) {
+		int pad = margin+(int) Math.ceil(1/scale);
+		int x0 = (int) Math.floor(tx*tileSize/scale), y0 = (int) Math.floor(ty*tileSize/scale);
+		int x1 = (int) Math.ceil((tx+1)*tileSize/scale), y1 = (int) Math.ceil((ty+1)*tileSize/scale);
+		return new Rectangle(x0-pad,y0-pad,x1-x0+2*pad,y1-y0+2*pad);
+	}
+
+	/**
+	 *
+	 * @param area
+	 * @return the paths the tiles are of whose bounding boxes touch the area,
+	 * in the order they are drawn, found by going through all of them
+	 */
+	private List<WhiteboardPath> pathsIn(Rectangle area) {
+		List<WhiteboardPath> found = new ArrayList<>();
+		for(WhiteboardPath path : paths) {
+			Rectangle box = path.getBounds();
+			if(box==null) continue;
+			box.grow(margin,margin);
+			if(box.intersects(area)) found.add(path);
+		}
+		return found;
+	}
+
+	/**
+	 * Drop the tiles a path crosses.
+	 * @param path
+	 */
+	private void invalidate(WhiteboardPath path) {
+		Rectangle box = path.getBounds();
+		if(box==null) return;
+		int pad = margin+(int) Math.ceil(scale);
+		int tx0 = Math.floorDiv((int) Math.floor(box.x*scale)-pad,tileSize);
+		int ty0 = Math.floorDiv((int) Math.floor(box.y*scale)-pad,tileSize);
+		int tx1 = Math.floorDiv((int) Math.ceil((box.x+box.width)*scale)+pad,tileSize);
+		int ty1 = Math.floorDiv((int) Math.ceil((box.y+box.height)*scale)+pad,tileSize);
+		if((long) (tx1-tx0+1)*(ty1-ty0+1)>tiles.size()) {
+			// cheaper to look at every tile than every tile the path crosses
+			Iterator<Map.Entry<Long,BufferedImage>> it = tiles.entrySet().iterator();
+			while(it.hasNext()) {
+				Map.Entry<Long,BufferedImage> tile = it.next();
+				int tx = (int) (tile.getKey()>>32), ty = (int) (long) tile.getKey();
+				if(tx>=tx0 && tx<=tx1 && ty>=ty0 && ty<=ty1) {
+					bytes-=bytesOf(tile.getValue());
+					it.remove();
+				}
+			}
+			return;
+		}
+		for(int tx=tx0;tx<=tx1;tx++) {
+			for(int ty=ty0;ty<=ty1;ty++) {
+				Long key = tileKey(tx,ty);
+				BufferedImage tile = tiles.remove(key);
+				if(tile!=null) bytes-=bytesOf(tile);
+			}
+		}
+	}
+
+	private void dropTiles() {
+		tiles.clear();
+		bytes=0;
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<Long,BufferedImage>> eldest = tiles.entrySet().iterator();
+		while(bytes>Utils.tileCacheBytes && eldest.hasNext()) {
+			bytes-=bytesOf(eldest.next().getValue());
+			eldest.remove();
+		}
+	}
+
+	private static long bytesOf(BufferedImage image) {
+		return 4L*image.getWidth()*image.getHeight();
+	}
+
+	private static long tileKey(int tx, int ty) {
+		return ((long) tx << 32) | (ty & 0xffffffffL);
+	}
+}
@@ -0,0 +1,303 @@
+package pb.app;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import pb.utils.PersistentVector;
+
+/**
+ * The contents of a board as a CRDT, so that every peer can apply its own
+ * operations straight away and those of others in whatever order they
+ * arrive, and all peers end up with the same paths without the host having
+ * to put the operations in order.
+ * <br/>
+ * Each path is added with a unique id, the id of the replica that added it
+ * and a counter, and a Lamport timestamp that orders the paths on the board.
+ * An undo removes one path by id, and a clear removes every path up to a
+ * counter for each replica, i.e. the paths the replica clearing the board had
+ * seen; a path added concurrently with a clear survives it. Removed ids are
+ * kept as tombstones, so applying an operation again or late has no effect.
+ * <br/>
+ * Operations are strings without "%":
+ * <ul>
+ * <li>"Areplica.counter.timestamp.PATH" adds a path</li>
+ * <li>"Rreplica.counter" removes a path</li>
+ * <li>"Creplica:counter,replica:counter,..." clears the board</li>
+ * </ul>
+ * This class is not thread safe; the board it belongs to synchronizes it.
+ *
+ * @see {@link pb.app.Whiteboard}
+ * @author aaron
+ *
+ */
+public class CrdtBoard {
+	private static Logger log = Logger.getLogger(CrdtBoard.class.getName());
+
+	/**
+	 * A path that has been added.
+	 */
+	private static class Entry implements Comparable<Entry> {
+		final String replica;
+		final long counter;
+		final long timestamp;
+		final String id;
+		final String encodedPath;
+		final WhiteboardPath path;
+
+		Entry(String replica, long counter, long timestamp, String encodedPath, WhiteboardPath path) {
+			this.replica=replica;
+			this.counter=counter;
+			this.timestamp=timestamp;
+			this.id=replica+"."+counter;
+			this.encodedPath=encodedPath;
+			this.path=path;
+		}
+
+		@Override
+		public int compareTo(Entry o) {
+			if(timestamp!=o.timestamp) return Long.compare(timestamp,o.timestamp);
+			int c = replica.compareTo(o.replica);
+			if(c!=0) return c;
+			return Long.compare(counter,o.counter);
+		}
+
+		String toOp() {
+			return "A"+id+"."+timestamp+"."+encodedPath;
+		}
+	}
+
+	/**
+	 * Id of this replica, which has no ".", ":", "," or "%".
+	 */
+	private final String replica;
+
+	/**
+	 * Counter of paths added by this replica.
+	 */
+	private long counter=0;
+
+	/**
+	 * Lamport clock.
+	 */
+	private long clock=0;
+
+	/**
+	 * Paths on the board, in order.
+	 */
+	private final TreeMap<Entry,Entry> live = new TreeMap<>();
+
+	/**
+	 * Paths on the board by id.
+	 */
+	private final HashMap<String,Entry> liveById = new HashMap<>();
+
+	/**
+	 * Ids of paths that have been removed, other than those a clear covers,
+	 * which a clear removes anyway.
+	 */
+	private final HashSet<String> removed = new HashSet<>();
+
+	/**
+	 * For each replica, the highest counter of its paths that have been
+	 * cleared.
+	 */
+	private final HashMap<String,Long> cleared = new HashMap<>();
+
+	/**
+	 * For each replica, the highest counter of its paths that have been seen.
+	 */
+	private final HashMap<String,Long> seen = new HashMap<>();
+
+	/**
+	 * The paths on the board, or null if they need to be rebuilt.
+	 */
+	private PersistentVector<WhiteboardPath> visible = PersistentVector.empty();
+
+	/**
+	 *
+	 * @param replica id of this replica, which has no ".", ":", "," or "%"
+	 */
+	public CrdtBoard(String replica) {
+		this.replica=replica;
+	}
+
+	/**
+	 * Add a path.
+	 * @param path
+	 * @return the operation to send to the other replicas
+	 */
+	public String add(WhiteboardPath path) {
+		Entry entry = new Entry(replica,++counter,++clock,PathCodec.encode(path),path);
+		addLive(entry);
+		return entry.toOp();
+	}
+
+	/**
+	 * Remove the last path.
+	 * @return the operation to send to the other replicas, or null if there
+	 * are no paths
+	 */
+	public String undo() {
+		if(live.isEmpty()) return null;
+		String op = "R"+live.lastKey().id;
+		apply(op);
+		return op;
+	}
+
+	/**
+	 * Remove all the paths seen so far.
+	 * @return the operation to send to the other replicas
+	 */
+	public String clear() {
+		StringBuilder sb = new StringBuilder("C");
+		for(Map.Entry<String,Long> s : seen.entrySet()) {
+			if(sb.length()>1) sb.append(',');
+			sb.append(s.getKey()).append(':').append(s.getValue());
+		}
+		String op = sb.toString();
+		apply(op);
+		return op;
+	}
+
+	/**
+	 * Apply an operation, from this or another replica.
+	 * @param op
+	 * @return true if the paths on the board changed
+	 */
+	public boolean apply(String op) {
+		if(op.isEmpty()) return false;
+		try {
+			switch(op.charAt(0)) {
+			case 'A': {
+				String[] parts = op.substring(1).split("\\.",4);
+				String from = parts[0];
+				long count = Long.parseLong(parts[1]);
+				long timestamp = Long.parseLong(parts[2]);
+				clock = Math.max(clock,timestamp);
+				String id = from+"."+count;
+				if(liveById.containsKey(id) || removed.contains(id)) return false;
+				see(from,count);
+				if(count<=cleared.getOrDefault(from,0L)) return false;
+				addLive(new Entry(from,count,timestamp,parts[3],PathCodec.decode(parts[3])));
+				return true;
+			}
+			case 'R': {
+				String id = op.substring(1);
+				if(!isCleared(id)) removed.add(id);
+				Entry entry = liveById.remove(id);
+				if(entry==null) return false;
+				live.remove(entry);
+				visible=null;
+				return true;
+			}
+			case 'C': {
+				boolean changed=false;
+				if(op.length()==1) return false;
+				for(String c : op.substring(1).split(",")) {
+					int colon = c.lastIndexOf(':');
+					String from = c.substring(0,colon);
+					long count = Long.parseLong(c.substring(colon+1));
+					if(count>cleared.getOrDefault(from,0L)) cleared.put(from,count);
+				}
+				List<Entry> gone = new ArrayList<>();
+				for(Entry entry : live.keySet()) {
+					if(entry.counter<=cleared.getOrDefault(entry.replica,0L)) gone.add(entry);
+				}
+				for(Entry entry : gone) {
+					live.remove(entry);
+					liveById.remove(entry.id);
+					changed=true;
+				}
+				// the clear covers the paths these ids were of
+				removed.removeIf(this::isCleared);
+				if(changed) visible=null;
+				return changed;
+			}
+			default:
+				log.severe("unknown board operation: "+op);
+				return false;
+			}
+		} catch (NumberFormatException | IndexOutOfBoundsException e) {
+			log.severe("board operation is malformed: "+op);
+			return false;
+		}
+	}
+
+	/**
+	 *
+	 * @param id of a path, replica.counter
+	 * @return true if a clear has removed the path, whether or not it has
+	 * been seen
+	 */
+	private boolean isCleared(String id) {
+		int dot = id.lastIndexOf('.');
+		if(dot<0) return false;
+		try {
+			return Long.parseLong(id.substring(dot+1))<=cleared.getOrDefault(id.substring(0,dot),0L);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private void see(String from, long count) {
+		if(count>seen.getOrDefault(from,0L)) seen.put(from,count);
+	}
+
+	private void addLive(Entry entry) {
+		see(entry.replica,entry.counter);
+		boolean last = live.isEmpty() || live.lastKey().compareTo(entry)<0;
+		live.put(entry,entry);
+		liveById.put(entry.id,entry);
+		if(visible!=null && last) {
+			// the usual case, a new path on top of the others
+			visible=visible.append(entry.path);
+		} else {
+			visible=null;
+		}
+	}
+
+	/**
+	 *
+	 * @return the paths on the board, in order
+	 */
+	public PersistentVector<WhiteboardPath> visible() {
+		if(visible==null) {
+			PersistentVector<WhiteboardPath> rebuilt = PersistentVector.empty();
+			for(Entry entry : live.keySet()) {
+				rebuilt=rebuilt.append(entry.path);
+			}
+			visible=rebuilt;
+		}
+		return visible;
+	}
+
+	/**
+	 * The whole state of the board, as operations that bring a new replica
+	 * up to date: the paths on the board, the clear and the removed ids
+	 * that the clear does not cover.
+	 * @return the operations
+	 */
+	public List<String> state() {
+		List<String> ops = new ArrayList<>(live.size()+removed.size()+1);
+		for(Entry entry : live.keySet()) {
+			ops.add(entry.toOp());
+		}
+		if(!cleared.isEmpty()) {
+			StringBuilder sb = new StringBuilder("C");
+			for(Map.Entry<String,Long> c : cleared.entrySet()) {
+				if(sb.length()>1) sb.append(',');
+				sb.append(c.getKey()).append(':').append(c.getValue());
+			}
+			ops.add(sb.toString());
+		}
+		for(String id : removed) {
+			if(!isCleared(id)) ops.add("R"+id);
+		}
+		return ops;
+	}
+}
@@ -3,14 +3,25 @@ package pb.app;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Image;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
+import java.awt.event.MouseWheelEvent;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+
+import pb.utils.PersistentVector;
+import pb.utils.Utils;
 
 /**
  * Initial code obtained from:
@@ -22,83 +33,557 @@ import javax.swing.JComponent;
 public class DrawArea extends JComponent {
 	private static Logger log = Logger.getLogger(DrawArea.class.getName());
 
-	// Image in which we're going to draw
-	private Image image;
+	// Image in which we're going to draw, the back buffer that only the
+	// renderer draws on
+	private BufferedImage image;
 	// Graphics2D object ==> used to draw on
 	private Graphics2D g2;
-	// Mouse coordinates
+	// draws on the back buffer in the coordinates of the board, for the view
+	private Graphics2D boardGraphics;
+	// Image shown on the screen, which the back buffer is copied to when
+	// a frame is presented
+	private BufferedImage front;
+	private final Object frontLock = new Object();
+	// the size of the component when it was last painted, which the
+	// renderer makes the back buffer, guarded by frontLock
+	private int paintedWidth, paintedHeight;
+	
+	// the thread that draws on the back buffer
+	private final BoardRenderer renderer;
+	
+	// regions of the back buffer drawn on since the last frame was
+	// presented, none of which overlap, see present
+	private ArrayList<Rectangle> dirty = new ArrayList<>();
+	
+	// pixels a path can draw outside the rectangle of its points, for the
+	// stroke and antialiasing
+	private static final int strokePadding = 2;
+	// Mouse coordinates, on the board
 	private int currentX, currentY, oldX, oldY;
 	
+	// the view of the board: its top left in pixels of the board zoomed,
+	// and how far it is zoomed, in steps of Utils.zoomStep
+	private int viewX=0, viewY=0;
+	private int zoom=0;
+	private double scale=1;
+	
+	// where the mouse was when the view was last panned, while it is
+	// dragged with the right button
+	private boolean panning=false;
+	private int panX, panY;
+	
+	// the board shown, as tiles that views of it are put together from
+	private final BoardTiles tiles = new BoardTiles();
+	
 	private WhiteboardPath currentPath;
 	
 	private Color currentColor=Color.black;
 	
+	// whether paths are smoothed when drawn, see PathSimplifier.smooth
+	private boolean smoothing=false;
+	
+	// the board whose first shownPaths paths are on the image, or null
+	private Whiteboard shownBoard;
+	private int shownPaths;
+	
+	// copies of the image with the first paths of the shown board on it,
+	// oldest first, see drawPaths
+	private ArrayList<Checkpoint> checkpoints = new ArrayList<>();
+	
+	private static class Checkpoint {
+		final int paths;
+		final BufferedImage image;
+		
+		Checkpoint(int paths, BufferedImage image) {
+			this.paths=paths;
+			this.image=image;
+		}
+	}
+	
+	// whether something other than paths, i.e. a stroke still being drawn,
+	// is on the image
+	private volatile boolean overdrawn=false;
+	
+	// images of boards that were shown before, with their checkpoints, least
+	// recently shown first, see showBoard
+	private LinkedHashMap<Whiteboard,CachedBoard> cachedBoards = new LinkedHashMap<>(16,0.75f,true);
+	private long cachedBytes=0;
+	private long cacheBudget=Utils.rasterCacheBytes;
+	
+	private static class CachedBoard {
+		final Checkpoint shown;
+		final ArrayList<Checkpoint> checkpoints;
+		final int viewX, viewY;
+		final double scale;
+		final long bytes;
+		
+		CachedBoard(Checkpoint shown, ArrayList<Checkpoint> checkpoints, int viewX, int viewY, double scale) {
+			this.shown=shown;
+			this.checkpoints=checkpoints;
+			this.viewX=viewX;
+			this.viewY=viewY;
+			this.scale=scale;
+			this.bytes=bytesOf(shown.image)*(1+checkpoints.size());
+		}
+	}
+	
 	public DrawArea(WhiteboardApp whiteboardApp) {
 		setDoubleBuffered(false);
-		addMouseListener(new MouseAdapter() {
+		renderer = new BoardRenderer(this);
+		renderer.start();
+		MouseAdapter mouse = new MouseAdapter() {
 			public void mousePressed(MouseEvent e) {
+				if(SwingUtilities.isRightMouseButton(e)) {
+					// the right button pans the view, unless a stroke is
+					// being drawn
+					panning = currentPath==null;
+					panX = e.getX();
+					panY = e.getY();
+					return;
+				}
+				if(panning) return;
 				// save coord x,y when mouse is pressed
-				oldX = e.getX();
-				oldY = e.getY();
+				oldX = boardX(e.getX());
+				oldY = boardY(e.getY());
 				currentPath = new WhiteboardPath(currentColor);
 				currentPath.addPoint(oldX, oldY);
-				if(g2!=null) {
-					g2.setPaint(currentColor);
-				}
+				whiteboardApp.strokeStarted(currentColor, oldX, oldY);
 			}
 			
 			public void mouseReleased(MouseEvent e) {
+				if(SwingUtilities.isRightMouseButton(e)) {
+					panning=false;
+					return;
+				}
+				whiteboardApp.strokeEnded();
 				if(currentPath!=null && currentPath.length()>1) {
 					// a path has been created
 					log.info("path created: "+currentPath.toString());
 					whiteboardApp.pathCreatedLocally(currentPath);
-					currentPath=null;
 				}
+				currentPath=null;
 			}
-		});
+			
+			public void mouseWheelMoved(MouseWheelEvent e) {
+				zoom(-e.getWheelRotation(), e.getX(), e.getY());
+			}
+		};
+		addMouseListener(mouse);
+		addMouseWheelListener(mouse);
 
 		addMouseMotionListener(new MouseMotionAdapter() {
 			public void mouseDragged(MouseEvent e) {
-				currentX = e.getX();
-				currentY = e.getY();
-				if (g2 != null) {
-					g2.drawLine(oldX, oldY, currentX, currentY);
-					repaint();
+				if(panning) {
+					pan(panX-e.getX(), panY-e.getY());
+					panX = e.getX();
+					panY = e.getY();
+					return;
+				}
+				currentX = boardX(e.getX());
+				currentY = boardY(e.getY());
+				if (g2 != null && currentPath != null) {
+					WhiteboardPath segment = new WhiteboardPath(currentColor,2);
+					segment.addPoint(oldX, oldY);
+					segment.addPoint(currentX, currentY);
+					renderer.drawInk(segment);
 					oldX = currentX;
 					oldY = currentY;
 					currentPath.addPoint(oldX, oldY);
+					whiteboardApp.strokePoint(oldX, oldY);
 				}
 			}
 		});
 	}
 
 	protected void paintComponent(Graphics g) {
-		if (image == null) {
-			image = createImage(getSize().width, getSize().height);
-			g2 = (Graphics2D) image.getGraphics();
-			g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-			clear();
+		int width = getWidth(), height = getHeight();
+		if (width<=0 || height<=0) return;
+		// only the front buffer is locked here, so that painting never
+		// waits for the renderer to finish a frame
+		boolean resized;
+		synchronized(frontLock) {
+			resized = width!=paintedWidth || height!=paintedHeight;
+			paintedWidth=width;
+			paintedHeight=height;
+			if(front!=null) g.drawImage(front, 0, 0, null);
 		}
-
-		g.drawImage(image, 0, 0, null);
+		// the renderer makes a back buffer of the new size and draws the
+		// board shown on it again
+		if(resized) renderer.redraw();
+	}
+	
+	/**
+	 * Make the back buffer the size the component was last painted at, with
+	 * nothing on it, if it is not that size. The renderer calls this before
+	 * drawing each frame.
+	 */
+	public synchronized void fitImage() {
+		int width, height;
+		synchronized(frontLock) {
+			width=paintedWidth;
+			height=paintedHeight;
+		}
+		if(width<=0 || height<=0) return;
+		if(image!=null && image.getWidth()==width && image.getHeight()==height) return;
+		setImage(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+		clear();
+	}
+	
+	/**
+	 * Use a new back buffer, with nothing on it that can be drawn on it
+	 * again.
+	 * @param newImage
+	 */
+	private void setImage(BufferedImage newImage) {
+		image=newImage;
+		g2 = image.createGraphics();
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		boardGraphics = image.createGraphics();
+		boardGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		viewChanged();
+		synchronized(frontLock) {
+			front=null;
+		}
+	}
+	
+	/**
+	 * Move the view of the board.
+	 * @param dx pixels to move right
+	 * @param dy pixels to move down
+	 */
+	public void pan(int dx, int dy) {
+		if(dx==0 && dy==0) return;
+		synchronized(this) {
+			viewX+=dx;
+			viewY+=dy;
+			viewChanged();
+		}
+		renderer.redraw();
+	}
+	
+	/**
+	 * Zoom the view of the board in or out, up to
+	 * {@link pb.utils.Utils#maxZoomSteps} steps each way, keeping the point
+	 * of the board under a pixel of the view where it is.
+	 * @param steps of {@link pb.utils.Utils#zoomStep} to zoom in, or out if
+	 * negative
+	 * @param x
+	 * @param y
+	 */
+	public void zoom(int steps, int x, int y) {
+		synchronized(this) {
+			int newZoom = Math.max(-Utils.maxZoomSteps,Math.min(Utils.maxZoomSteps,zoom+steps));
+			if(newZoom==zoom) return;
+			double pointX = (x+viewX)/scale, pointY = (y+viewY)/scale;
+			zoom=newZoom;
+			scale=Math.pow(Utils.zoomStep,zoom);
+			viewX=(int) Math.round(pointX*scale)-x;
+			viewY=(int) Math.round(pointY*scale)-y;
+			tiles.setScale(scale);
+			viewChanged();
+		}
+		renderer.redraw();
+	}
+	
+	/**
+	 * The view has changed, so what is on the back buffer can not be drawn
+	 * on any more, only drawn again.
+	 */
+	private void viewChanged() {
+		AffineTransform transform = new AffineTransform();
+		transform.translate(-viewX,-viewY);
+		transform.scale(scale,scale);
+		if(boardGraphics!=null) boardGraphics.setTransform(transform);
+		shownBoard=null;
+		checkpoints = new ArrayList<>();
+	}
+	
+	private int boardX(int x) {
+		return (int) Math.floor((x+viewX)/scale);
+	}
+	
+	private int boardY(int y) {
+		return (int) Math.floor((y+viewY)/scale);
+	}
+	
+	/**
+	 * Copy the regions of the back buffer drawn on to the screen, once a
+	 * frame has been drawn, and repaint just those regions.
+	 */
+	public synchronized void present() {
+		if(image==null) return;
+		synchronized(frontLock) {
+			if(front==null) {
+				front = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+				dirtyAll();
+			}
+			Graphics2D g = front.createGraphics();
+			for(Rectangle region : dirty) {
+				g.drawImage(image.getSubimage(region.x,region.y,region.width,region.height),
+						region.x, region.y, null);
+			}
+			g.dispose();
+		}
+		for(Rectangle region : dirty) {
+			repaint(region.x, region.y, region.width, region.height);
+		}
+		dirty.clear();
+	}
+	
+	/**
+	 * A region of the back buffer has been drawn on. It is merged with the
+	 * regions it overlaps, and once there are more than
+	 * {@link pb.utils.Utils#maxDirtyRegions} they are all merged into one.
+	 * @param region
+	 */
+	private void dirty(Rectangle region) {
+		region = region.intersection(new Rectangle(0,0,image.getWidth(),image.getHeight()));
+		if(region.isEmpty()) return;
+		boolean merged=true;
+		while(merged) {
+			merged=false;
+			for(int i=0;i<dirty.size();i++) {
+				if(dirty.get(i).intersects(region)) {
+					region = region.union(dirty.remove(i));
+					merged=true;
+					break;
+				}
+			}
+		}
+		dirty.add(region);
+		if(dirty.size()>Utils.maxDirtyRegions) {
+			Rectangle all = dirty.get(0);
+			for(Rectangle other : dirty) all = all.union(other);
+			dirty.clear();
+			dirty.add(all);
+		}
+	}
+	
+	/**
+	 * A path has been drawn on the back buffer.
+	 * @param path
+	 */
+	private void dirty(WhiteboardPath path) {
+		Rectangle bounds = path.getBounds();
+		if(bounds==null) return;
+		int x0 = (int) Math.floor(bounds.x*scale)-viewX;
+		int y0 = (int) Math.floor(bounds.y*scale)-viewY;
+		int x1 = (int) Math.ceil((bounds.x+bounds.width)*scale)-viewX;
+		int y1 = (int) Math.ceil((bounds.y+bounds.height)*scale)-viewY;
+		// the stroke is as wide as a pixel of the board
+		int padding = strokePadding+(int) Math.ceil(scale);
+		// the rectangle has the points on its far edges, which are drawn on
+		dirty(new Rectangle(x0-padding,y0-padding,x1-x0+2*padding+1,y1-y0+2*padding+1));
+	}
+	
+	/**
+	 * All of the back buffer has been drawn on.
+	 */
+	private void dirtyAll() {
+		dirty.clear();
+		dirty.add(new Rectangle(0,0,image.getWidth(),image.getHeight()));
+	}
+	
+	/**
+	 * 
+	 * @return the thread that draws on this draw area, which other threads
+	 * ask to draw rather than drawing themselves
+	 */
+	public BoardRenderer getRenderer() {
+		return renderer;
 	}
 	
 	/**
 	 * Draw a whiteboard path on the board.
 	 * @param whiteboardPath
 	 */
-	public void drawPath(WhiteboardPath whiteboardPath) {
-		whiteboardPath.drawOnBoard(g2);
-		repaint();
+	public synchronized void drawPath(WhiteboardPath whiteboardPath) {
+		if(boardGraphics==null) return;
+		overdrawn=true;
+		if(smoothing) whiteboardPath = PathSimplifier.smooth(whiteboardPath);
+		whiteboardPath.drawOnBoard(boardGraphics);
+		dirty(whiteboardPath);
+	}
+	
+	/**
+	 * Draw ink of the stroke being drawn here, which the path added for the
+	 * stroke then goes over.
+	 * @param segment
+	 */
+	public synchronized void drawInk(WhiteboardPath segment) {
+		if(boardGraphics==null) return;
+		segment.drawOnBoard(boardGraphics);
+		dirty(segment);
+	}
+
+	/**
+	 * Draw the paths of a board, drawing only those that are not already on
+	 * the image. Paths that have been removed since the board was last drawn
+	 * are taken off by going back to the last checkpoint before them, a copy
+	 * of the image kept every {@link pb.utils.Utils#renderCheckpointInterval}
+	 * paths, or if there is none by putting the view together from the tiles
+	 * of the board, rather than by drawing the whole board again.
+	 * @param board
+	 * @param paths the paths of the board now
+	 * @param unchanged how many of the first paths are the same as when the
+	 * board was last drawn
+	 * @param checkpoint whether only paths are on the image, so that it can be
+	 * copied for a checkpoint
+	 * @return true if the image went back to a checkpoint, so that anything
+	 * drawn over the paths has to be drawn again
+	 */
+	public synchronized boolean drawPaths(Whiteboard board, PersistentVector<WhiteboardPath> paths,
+			int unchanged, boolean checkpoint) {
+		// the tiles follow every change, shown or not
+		tiles.update(board,paths,unchanged);
+		if(g2==null) return false;
+		int from = board==shownBoard ? Math.min(unchanged,shownPaths) : 0;
+		boolean restored = board!=shownBoard || from<shownPaths;
+		if(restored) {
+			if(board!=shownBoard) checkpoints = new ArrayList<>();
+			while(!checkpoints.isEmpty() && checkpoints.get(checkpoints.size()-1).paths>from) {
+				checkpoints.remove(checkpoints.size()-1);
+			}
+			if(checkpoints.isEmpty()) {
+				tiles.draw(g2,viewX,viewY,image.getWidth(),image.getHeight());
+				dirtyAll();
+				from=paths.size();
+			} else {
+				Checkpoint last = checkpoints.get(checkpoints.size()-1);
+				g2.drawImage(last.image,0,0,null);
+				dirtyAll();
+				from=last.paths;
+			}
+			overdrawn=false;
+		}
+		// no checkpoint while a path is being drawn, since it is on the image
+		checkpoint &= currentPath==null;
+		for(int i=from;i<paths.size();i++) {
+			WhiteboardPath path = paths.get(i);
+			if(smoothing) path = PathSimplifier.smooth(path);
+			path.drawOnBoard(boardGraphics);
+			dirty(path);
+			if(checkpoint && (i+1)%Utils.renderCheckpointInterval==0) {
+				saveCheckpoint(i+1);
+			}
+		}
+		shownBoard=board;
+		shownPaths=paths.size();
+		return restored;
+	}
+	
+	private void saveCheckpoint(int paths) {
+		if(!checkpoints.isEmpty() && checkpoints.get(checkpoints.size()-1).paths>=paths) return;
+		checkpoints.add(new Checkpoint(paths,copyImage()));
+		if(checkpoints.size()>Utils.renderCheckpoints) checkpoints.remove(0);
+	}
+	
+	private BufferedImage copyImage() {
+		BufferedImage copy = new BufferedImage(image.getWidth(),image.getHeight(),BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = copy.createGraphics();
+		g.drawImage(image,0,0,null);
+		g.dispose();
+		return copy;
+	}
+	
+	private static long bytesOf(BufferedImage image) {
+		return 4L*image.getWidth()*image.getHeight();
+	}
+	
+	/**
+	 * Show the image of a board as it was when the board was last shown, if
+	 * it is still cached, so that only the changes since need drawing. The
+	 * image of the board shown until now is cached in turn, unless a stroke
+	 * still being drawn is on it. An image is only shown in the view it was
+	 * cached in. Images are kept, least recently shown
+	 * first out, up to the budget set by {@link #setCacheBudget(long)}.
+	 * @param board
+	 * @return true if the image of the board is shown, false if the board
+	 * has to be drawn from the start
+	 */
+	public synchronized boolean showBoard(Whiteboard board) {
+		if(g2==null) return false;
+		if(board==shownBoard) return !overdrawn;
+		if(shownBoard!=null && !overdrawn) {
+			CachedBoard previous = new CachedBoard(new Checkpoint(shownPaths,copyImage()),checkpoints,
+					viewX,viewY,scale);
+			CachedBoard replaced = cachedBoards.put(shownBoard,previous);
+			if(replaced!=null) cachedBytes-=replaced.bytes;
+			cachedBytes+=previous.bytes;
+		}
+		CachedBoard cached = cachedBoards.remove(board);
+		if(cached!=null) cachedBytes-=cached.bytes;
+		evict();
+		// the checkpoints are the cached board's now
+		shownBoard=null;
+		checkpoints = new ArrayList<>();
+		if(cached==null || cached.shown.image.getWidth()!=image.getWidth()
+				|| cached.shown.image.getHeight()!=image.getHeight()
+				|| cached.viewX!=viewX || cached.viewY!=viewY || cached.scale!=scale) {
+			return false;
+		}
+		g2.drawImage(cached.shown.image,0,0,null);
+		dirtyAll();
+		shownBoard=board;
+		shownPaths=cached.shown.paths;
+		checkpoints=cached.checkpoints;
+		overdrawn=false;
+		return true;
+	}
+	
+	/**
+	 * Drop the cached image of a board, when the board is deleted.
+	 * @param board
+	 */
+	public synchronized void forget(Whiteboard board) {
+		CachedBoard cached = cachedBoards.remove(board);
+		if(cached!=null) cachedBytes-=cached.bytes;
+		if(board==shownBoard) shownBoard=null;
+		tiles.forget(board);
+	}
+	
+	/**
+	 * Set how many bytes of board images to cache.
+	 * @param budget
+	 */
+	public synchronized void setCacheBudget(long budget) {
+		cacheBudget=budget;
+		evict();
+	}
+	
+	private void evict() {
+		Iterator<Map.Entry<Whiteboard,CachedBoard>> eldest = cachedBoards.entrySet().iterator();
+		while(cachedBytes>cacheBudget && eldest.hasNext()) {
+			cachedBytes-=eldest.next().getValue().bytes;
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Set whether paths are smoothed when drawn. Only what is shown
+	 * changes, not the paths themselves.
+	 * @param smoothing
+	 */
+	public synchronized void setSmoothing(boolean smoothing) {
+		this.smoothing=smoothing;
+		tiles.setSmoothing(smoothing);
+		shownBoard=null;
 	}
 
 	// now we create exposed methods
-	public void clear() {
+	public synchronized void clear() {
+		shownBoard=null;
+		checkpoints = new ArrayList<>();
+		overdrawn=false;
+		fill();
+	}
+	
+	private void fill() {
 		if(g2!=null) {
 			g2.setPaint(Color.white);
 			// draw white on entire draw area to clear
-			g2.fillRect(0, 0, getSize().width, getSize().height);
-			repaint();
+			g2.fillRect(0, 0, image.getWidth(), image.getHeight());
+			dirtyAll();
 		}
 	}
 
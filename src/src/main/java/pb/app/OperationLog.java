@@ -0,0 +1,111 @@
+package pb.app;
+
+/**
+ * A bounded log of the operations applied to a board, indexed by the version
+ * of the board that each was applied to. A peer whose copy of the board is
+ * at some version can be sent just the operations since then, rather than
+ * the whole board, as long as the log still goes back that far.
+ * <br/>
+ * Operations are kept as strings: {@link #addOp} followed by the encoded
+ * path, {@link #undoOp} or {@link #clearOp}. None of them have "%", so they
+ * can be sent separated by "%" just like the paths of a board.
+ *
+ * @see {@link pb.app.Whiteboard}
+ * @author aaron
+ *
+ */
+public class OperationLog {
+
+	/**
+	 * Adds a path, which follows it.
+	 */
+	public static final char addOp = 'A';
+
+	/**
+	 * Removes the last path.
+	 */
+	public static final char undoOp = 'U';
+
+	/**
+	 * Removes all paths.
+	 */
+	public static final char clearOp = 'C';
+
+	/**
+	 * The operations, in a ring: the one applied to version v is at
+	 * v modulo the length.
+	 */
+	private final String[] ops;
+
+	/**
+	 * The version the oldest operation in the log was applied to.
+	 */
+	private long firstVersion=0;
+
+	/**
+	 * The version the next operation will be applied to.
+	 */
+	private long nextVersion=0;
+
+	/**
+	 *
+	 * @param capacity the number of operations kept
+	 */
+	public OperationLog(int capacity) {
+		ops = new String[capacity];
+	}
+
+	/**
+	 * Append an operation. If the version is not the one following the last
+	 * operation then the log starts again from it.
+	 * @param version of the board the operation was applied to
+	 * @param op
+	 */
+	public synchronized void append(long version, String op) {
+		if(version!=nextVersion) {
+			firstVersion=version;
+		}
+		ops[(int) (version%ops.length)]=op;
+		nextVersion=version+1;
+		if(nextVersion-firstVersion>ops.length) firstVersion=nextVersion-ops.length;
+	}
+
+	/**
+	 * Get the operations since a version.
+	 * @param version
+	 * @return the operations applied to the version and those after it,
+	 * separated by "%", or null if the log does not have them all
+	 */
+	public synchronized String since(long version) {
+		if(version<firstVersion || version>nextVersion) return null;
+		StringBuilder sb = new StringBuilder();
+		for(long v=version;v<nextVersion;v++) {
+			if(v>version) sb.append('%');
+			sb.append(ops[(int) (v%ops.length)]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 *
+	 * @param version
+	 * @return true if every operation since the version is an undo or a
+	 * clear, false if there is an add or the log does not go back that far
+	 */
+	public synchronized boolean onlyRemovalsSince(long version) {
+		if(version<firstVersion || version>nextVersion) return false;
+		for(long v=version;v<nextVersion;v++) {
+			if(ops[(int) (v%ops.length)].charAt(0)==addOp) return false;
+		}
+		return true;
+	}
+
+	/**
+	 *
+	 * @param encodedPath
+	 * @return the operation that adds the path
+	 */
+	public static String add(String encodedPath) {
+		return addOp+encodedPath;
+	}
+}
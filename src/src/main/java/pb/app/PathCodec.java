@@ -0,0 +1,133 @@
+package pb.app;
+
+import java.awt.Color;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.logging.Logger;
+
+/**
+ * Compact encoding of a {@link WhiteboardPath} for sending it to other peers,
+ * used instead of the path's text format color>x,y>x,y>... in path updates
+ * and board data.
+ * <br/>
+ * The encoding is "#" followed by the Base64 (without padding) of: the index
+ * of the color, the number of points, the first point and then the change in
+ * x and y from each point to the next. All of these are varints, and the
+ * coordinates and changes are zig-zag encoded so that small negative numbers
+ * are small too; consecutive points of a stroke are close together, so most
+ * changes take a single byte. None of "%", ">" or ":" appear in an encoded
+ * path, so it can be embedded in event data just like the text format.
+ * <br/>
+ * {@link #decode(String)} also accepts the text format, so peers that still
+ * send it can be understood.
+ *
+ * @see {@link pb.app.WhiteboardPath}
+ * @author aaron
+ *
+ */
+public class PathCodec {
+	private static Logger log = Logger.getLogger(PathCodec.class.getName());
+
+	/**
+	 * Marks an encoded path, as opposed to one in the text format.
+	 */
+	public static final char prefix = '#';
+
+	/**
+	 * Colors by index.
+	 */
+	private static final Color[] colors = { Color.black, Color.red };
+
+	private static final Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+	private static final Base64.Decoder decoder = Base64.getDecoder();
+
+	/**
+	 * Encode a path.
+	 * @param path
+	 * @return the encoded path
+	 */
+	public static String encode(WhiteboardPath path) {
+		int n = path.length();
+		int[] xs = path.getXs();
+		int[] ys = path.getYs();
+		ByteBuffer bytes = ByteBuffer.allocate(10+10*n);
+		putVarint(bytes,colorIndex(path.getColor()));
+		putVarint(bytes,n);
+		int x=0, y=0;
+		for(int i=0;i<n;i++) {
+			putVarint(bytes,zigZag(xs[i]-x));
+			putVarint(bytes,zigZag(ys[i]-y));
+			x=xs[i];
+			y=ys[i];
+		}
+		bytes.flip();
+		ByteBuffer encoded = encoder.encode(bytes);
+		StringBuilder sb = new StringBuilder(1+encoded.remaining());
+		sb.append(prefix);
+		sb.append(new String(encoded.array(),0,encoded.limit(),StandardCharsets.US_ASCII));
+		return sb.toString();
+	}
+
+	/**
+	 * Decode a path, in either the encoded or the text format.
+	 * @param data
+	 * @return the path, which is empty and black if the data is malformed
+	 */
+	public static WhiteboardPath decode(String data) {
+		if(data.isEmpty() || data.charAt(0)!=prefix) return new WhiteboardPath(data);
+		try {
+			ByteBuffer bytes = ByteBuffer.wrap(decoder.decode(data.substring(1)));
+			int color = getVarint(bytes);
+			int n = getVarint(bytes);
+			if(n<0 || n>2*bytes.remaining()) throw new IllegalArgumentException("bad point count "+n);
+			WhiteboardPath path = new WhiteboardPath(color>=0 && color<colors.length ?
+					colors[color] : Color.black, n);
+			int x=0, y=0;
+			for(int i=0;i<n;i++) {
+				x+=unZigZag(getVarint(bytes));
+				y+=unZigZag(getVarint(bytes));
+				path.addPoint(x,y);
+			}
+			return path;
+		} catch (IllegalArgumentException | BufferUnderflowException e) {
+			log.severe("invalid encoded path ["+data+"]: "+e.getMessage());
+			return new WhiteboardPath(Color.black);
+		}
+	}
+
+	private static int colorIndex(Color color) {
+		for(int i=0;i<colors.length;i++) {
+			if(colors[i]==color) return i;
+		}
+		log.warning("color defaulting to black");
+		return 0;
+	}
+
+	private static int zigZag(int v) {
+		return (v << 1) ^ (v >> 31);
+	}
+
+	private static int unZigZag(int v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static void putVarint(ByteBuffer bytes, int v) {
+		while((v & ~0x7F)!=0) {
+			bytes.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		bytes.put((byte) v);
+	}
+
+	private static int getVarint(ByteBuffer bytes) {
+		int v=0;
+		for(int shift=0;shift<35;shift+=7) {
+			byte b = bytes.get();
+			v |= (b & 0x7F) << shift;
+			if((b & 0x80)==0) return v;
+		}
+		throw new IllegalArgumentException("varint too long");
+	}
+}
@@ -0,0 +1,285 @@
+package pb.app;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+import pb.utils.PersistentVector;
+import pb.utils.Utils;
+
+/**
+ * A spatial index of the paths of a board, so that the paths touching a
+ * rectangle or near a point can be found without going through every path.
+ * The bounding box of each path is put in the cells of a uniform grid of
+ * {@link pb.utils.Utils#pathIndexCellSize} pixels that it overlaps. A path
+ * that covers more than {@link pb.utils.Utils#pathIndexMaxCells} cells is
+ * kept apart and checked by every query instead, so that a few long strokes
+ * do not fill the grid.
+ * <br/>
+ * Paths are numbered by their position on the board, and the index follows
+ * the board as paths are added, the last one is removed or all are cleared.
+ * Any other change to the paths has the index rebuilt the next time it is
+ * queried. This class is not thread safe; the board it belongs to
+ * synchronizes it.
+ *
+ * @see {@link pb.app.Whiteboard}
+ * @author aaron
+ *
+ */
+public class PathIndex {
+
+	/**
+	 * Pixels around the points of a path that it draws on.
+	 */
+	private static final int margin = 1;
+
+	private final int cellSize;
+
+	/**
+	 * The paths indexed, in order, and their bounding boxes.
+	 */
+	private final ArrayList<WhiteboardPath> paths = new ArrayList<>();
+	private final ArrayList<Rectangle> bounds = new ArrayList<>();
+
+	/**
+	 * Numbers of the paths that overlap each cell, in increasing order, by
+	 * {@link #cellKey(int, int)}.
+	 */
+	private final HashMap<Long,ArrayList<Integer>> cells = new HashMap<>();
+
+	/**
+	 * Numbers of the paths that cover too many cells to be put in them, in
+	 * increasing order.
+	 */
+	private final ArrayList<Integer> large = new ArrayList<>();
+
+	/**
+	 * The paths to rebuild the index from when it is next queried, or null if
+	 * the index is up to date.
+	 */
+	private PersistentVector<WhiteboardPath> stale;
+
+	public PathIndex() {
+		this(Utils.pathIndexCellSize);
+	}
+
+	/**
+	 *
+	 * @param cellSize in pixels
+	 */
+	public PathIndex(int cellSize) {
+		this.cellSize=cellSize;
+	}
+
+	/**
+	 * Index a path added to the end of the board.
+	 * @param path
+	 */
+	public void add(WhiteboardPath path) {
+		if(stale!=null) {
+			stale=stale.append(path);
+			return;
+		}
+		int i = paths.size();
+		Rectangle box = boundsOf(path);
+		paths.add(path);
+		bounds.add(box);
+		if(box==null) return;
+		int cx0 = cell(box.x), cy0 = cell(box.y);
+		int cx1 = cell(box.x+box.width), cy1 = cell(box.y+box.height);
+		if((long) (cx1-cx0+1)*(cy1-cy0+1)>Utils.pathIndexMaxCells) {
+			large.add(i);
+			return;
+		}
+		for(int cx=cx0;cx<=cx1;cx++) {
+			for(int cy=cy0;cy<=cy1;cy++) {
+				cells.computeIfAbsent(cellKey(cx,cy),k->new ArrayList<>()).add(i);
+			}
+		}
+	}
+
+	/**
+	 * Remove the last path from the index.
+	 */
+	public void pop() {
+		if(stale!=null) {
+			stale=stale.isEmpty() ? stale : stale.pop();
+			return;
+		}
+		if(paths.isEmpty()) return;
+		int i = paths.size()-1;
+		paths.remove(i);
+		Rectangle box = bounds.remove(i);
+		if(box==null) return;
+		if(!large.isEmpty() && large.get(large.size()-1)==i) {
+			large.remove(large.size()-1);
+			return;
+		}
+		int cx0 = cell(box.x), cy0 = cell(box.y);
+		int cx1 = cell(box.x+box.width), cy1 = cell(box.y+box.height);
+		for(int cx=cx0;cx<=cx1;cx++) {
+			for(int cy=cy0;cy<=cy1;cy++) {
+				Long key = cellKey(cx,cy);
+				ArrayList<Integer> cell = cells.get(key);
+				// the last path is the last in each of its cells
+				cell.remove(cell.size()-1);
+				if(cell.isEmpty()) cells.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Remove all paths from the index.
+	 */
+	public void clear() {
+		stale=null;
+		paths.clear();
+		bounds.clear();
+		cells.clear();
+		large.clear();
+	}
+
+	/**
+	 * The paths have changed in some other way, so rebuild the index from
+	 * them when it is next queried.
+	 * @param paths
+	 */
+	public void invalidate(PersistentVector<WhiteboardPath> paths) {
+		if(paths.isEmpty()) {
+			clear();
+		} else {
+			stale=paths;
+		}
+	}
+
+	private void rebuild() {
+		PersistentVector<WhiteboardPath> from = stale;
+		clear();
+		for(WhiteboardPath path : from) {
+			add(path);
+		}
+	}
+
+	/**
+	 *
+	 * @param area
+	 * @return the paths whose bounding boxes touch the area, in the order
+	 * they are drawn
+	 */
+	public List<WhiteboardPath> pathsIn(Rectangle area) {
+		BitSet found = candidates(area);
+		List<WhiteboardPath> result = new ArrayList<>();
+		for(int i=found.nextSetBit(0);i>=0;i=found.nextSetBit(i+1)) {
+			result.add(paths.get(i));
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 * @param x
+	 * @param y
+	 * @param tolerance in pixels
+	 * @return the position on the board of the topmost path that passes
+	 * within the tolerance of the point, or -1 if there is none
+	 */
+	public int pathAt(int x, int y, int tolerance) {
+		BitSet found = candidates(new Rectangle(x-tolerance,y-tolerance,2*tolerance,2*tolerance));
+		long limit = (long) (tolerance+margin)*(tolerance+margin);
+		for(int i=found.length()-1;i>=0;i=found.previousSetBit(i-1)) {
+			if(distanceSquared(paths.get(i),x,y)<=limit) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 *
+	 * @param area
+	 * @return the numbers of the paths whose bounding boxes touch the area
+	 */
+	private BitSet candidates(Rectangle area) {
+		if(stale!=null) rebuild();
+		BitSet found = new BitSet(paths.size());
+		int cx0 = cell(area.x), cy0 = cell(area.y);
+		int cx1 = cell(area.x+area.width), cy1 = cell(area.y+area.height);
+		if((long) (cx1-cx0+1)*(cy1-cy0+1)>cells.size()) {
+			// cheaper to look at every path than every cell of the area
+			for(int i=0;i<paths.size();i++) {
+				if(touches(i,area)) found.set(i);
+			}
+			return found;
+		}
+		for(int cx=cx0;cx<=cx1;cx++) {
+			for(int cy=cy0;cy<=cy1;cy++) {
+				ArrayList<Integer> cell = cells.get(cellKey(cx,cy));
+				if(cell==null) continue;
+				for(int i : cell) {
+					if(!found.get(i) && touches(i,area)) found.set(i);
+				}
+			}
+		}
+		for(int i : large) {
+			if(touches(i,area)) found.set(i);
+		}
+		return found;
+	}
+
+	private boolean touches(int i, Rectangle area) {
+		Rectangle box = bounds.get(i);
+		return box!=null && box.x<=area.x+area.width && area.x<=box.x+box.width
+				&& box.y<=area.y+area.height && area.y<=box.y+box.height;
+	}
+
+	/**
+	 *
+	 * @param path
+	 * @return the bounding box of the path with the margin, or null if it has
+	 * no points
+	 */
+	private static Rectangle boundsOf(WhiteboardPath path) {
+		Rectangle box = path.getBounds();
+		if(box!=null) box.grow(margin,margin);
+		return box;
+	}
+
+	/**
+	 *
+	 * @return the square of the distance from the point to the nearest
+	 * segment of the path
+	 */
+	private static long distanceSquared(WhiteboardPath path, int x, int y) {
+		int n = path.length();
+		int[] xs = path.getXs();
+		int[] ys = path.getYs();
+		long best = sq(xs[0]-x)+sq(ys[0]-y);
+		for(int i=1;i<n;i++) {
+			long dx = xs[i]-xs[i-1], dy = ys[i]-ys[i-1];
+			long px = x-xs[i-1], py = y-ys[i-1];
+			long len = dx*dx+dy*dy;
+			long d;
+			if(len==0) {
+				d = px*px+py*py;
+			} else {
+				double t = Math.max(0,Math.min(1,(double) (px*dx+py*dy)/len));
+				double ex = px-t*dx, ey = py-t*dy;
+				d = (long) Math.ceil(ex*ex+ey*ey);
+			}
+			if(d<best) best=d;
+		}
+		return best;
+	}
+
+	private static long sq(long v) {
+		return v*v;
+	}
+
+	private int cell(int coordinate) {
+		return Math.floorDiv(coordinate,cellSize);
+	}
+
+	private static long cellKey(int cx, int cy) {
+		return ((long) cx << 32) | (cy & 0xffffffffL);
+	}
+}
@@ -0,0 +1,141 @@
+package pb.app;
+
+import java.util.ArrayDeque;
+
+/**
+ * Reduces the number of points in a path as it is committed, before it is
+ * added to a board or sent to other peers. Mouse events arrive every few
+ * pixels, so a slow stroke has many more points than are needed to draw it.
+ * <br/>
+ * First points closer than a minimum distance to the last point kept are
+ * dropped, then the path is simplified with the Ramer-Douglas-Peucker
+ * algorithm: a point is only kept if leaving it out would move the line by
+ * more than the tolerance, in pixels. The first and last points are always
+ * kept. Receivers can optionally use {@link #smooth(WhiteboardPath)} to draw
+ * the simplified path with rounded corners.
+ *
+ * @see {@link pb.app.WhiteboardPath}
+ * @author aaron
+ *
+ */
+public class PathSimplifier {
+
+	/**
+	 * Largest distance in pixels the simplified line may be from a
+	 * point that is dropped.
+	 */
+	private final double tolerance;
+
+	/**
+	 * Smallest distance in pixels between consecutive points kept.
+	 */
+	private final double minDistance;
+
+	/**
+	 *
+	 * @param tolerance in pixels, 0 to not simplify
+	 * @param minDistance in pixels, 0 to keep points however close they are
+	 */
+	public PathSimplifier(double tolerance, double minDistance) {
+		this.tolerance=tolerance;
+		this.minDistance=minDistance;
+	}
+
+	/**
+	 * Simplify a path.
+	 * @param path
+	 * @return a simplified copy of the path, or the path itself if no
+	 * points could be dropped
+	 */
+	public WhiteboardPath simplify(WhiteboardPath path) {
+		int n = path.length();
+		if(n<=2) return path;
+		int[] xs = path.getXs();
+		int[] ys = path.getYs();
+
+		// minimum-distance sampling, always keeping the last point
+		int[] sx = new int[n];
+		int[] sy = new int[n];
+		int m = 0;
+		double minDistance2 = minDistance*minDistance;
+		for(int i=0;i<n;i++) {
+			if(m>0 && i<n-1) {
+				double dx = xs[i]-sx[m-1], dy = ys[i]-sy[m-1];
+				if(dx*dx+dy*dy<minDistance2) continue;
+			}
+			sx[m]=xs[i];
+			sy[m]=ys[i];
+			m++;
+		}
+
+		// Ramer-Douglas-Peucker, with an explicit stack since strokes can be long
+		boolean[] keep = new boolean[m];
+		keep[0]=true;
+		keep[m-1]=true;
+		ArrayDeque<int[]> ranges = new ArrayDeque<>();
+		if(m>2) ranges.push(new int[] {0,m-1});
+		double tolerance2 = tolerance*tolerance;
+		while(!ranges.isEmpty()) {
+			int[] range = ranges.pop();
+			int first=range[0], last=range[1];
+			int furthest=-1;
+			double furthestDistance2=tolerance2;
+			for(int i=first+1;i<last;i++) {
+				double d2 = distance2(sx[i],sy[i],sx[first],sy[first],sx[last],sy[last]);
+				if(d2>furthestDistance2) {
+					furthest=i;
+					furthestDistance2=d2;
+				}
+			}
+			if(furthest!=-1) {
+				keep[furthest]=true;
+				if(furthest-first>1) ranges.push(new int[] {first,furthest});
+				if(last-furthest>1) ranges.push(new int[] {furthest,last});
+			}
+		}
+
+		int kept = 0;
+		for(int i=0;i<m;i++) if(keep[i]) kept++;
+		if(kept==n) return path;
+		WhiteboardPath simplified = new WhiteboardPath(path.getColor(),kept);
+		for(int i=0;i<m;i++) {
+			if(keep[i]) simplified.addPoint(sx[i],sy[i]);
+		}
+		return simplified;
+	}
+
+	/**
+	 *
+	 * @return the square of the distance from point p to the segment a-b
+	 */
+	private static double distance2(int px, int py, int ax, int ay, int bx, int by) {
+		double dx = bx-ax, dy = by-ay;
+		double length2 = dx*dx+dy*dy;
+		double t = length2==0 ? 0 : ((px-ax)*dx+(py-ay)*dy)/length2;
+		t = Math.max(0,Math.min(1,t));
+		double ex = ax+t*dx-px, ey = ay+t*dy-py;
+		return ex*ex+ey*ey;
+	}
+
+	/**
+	 * Smooth a path for display using one round of Chaikin's corner cutting:
+	 * each corner is replaced by two points a quarter of the way along the
+	 * segments either side of it. The first and last points are kept.
+	 * @param path
+	 * @return a smoothed copy of the path, or the path itself if it has no corners
+	 */
+	public static WhiteboardPath smooth(WhiteboardPath path) {
+		int n = path.length();
+		if(n<=2) return path;
+		int[] xs = path.getXs();
+		int[] ys = path.getYs();
+		WhiteboardPath smoothed = new WhiteboardPath(path.getColor(),2*n);
+		smoothed.addPoint(xs[0],ys[0]);
+		for(int i=0;i<n-1;i++) {
+			if(i>0) smoothed.addPoint((3*xs[i]+xs[i+1]+2)/4,(3*ys[i]+ys[i+1]+2)/4);
+			if(i<n-2) smoothed.addPoint((xs[i]+3*xs[i+1]+2)/4,(ys[i]+3*ys[i+1]+2)/4);
+		}
+		smoothed.addPoint(xs[n-1],ys[n-1]);
+		return smoothed;
+	}
+}
@@ -0,0 +1,118 @@
+package pb.app;
+
+import java.awt.Color;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pb.utils.Utils;
+
+/**
+ * Streams a stroke to the other peers of a board while the mouse is still
+ * down, so that they see it being drawn rather than all at once when it is
+ * finished. The stroke is started with its first point, the points that
+ * follow are sent in batches every {@link pb.utils.Utils#strokeBatchInterval}
+ * ms, and then the stroke is ended. Other peers draw the stroke over the
+ * board until it ends, after which the path is committed to the board as
+ * usual.
+ *
+ * @see {@link pb.app.WhiteboardApp#boardStrokeStart}
+ * @see {@link pb.app.WhiteboardApp#boardStrokePoints}
+ * @see {@link pb.app.WhiteboardApp#boardStrokeEnd}
+ * @author aaron
+ *
+ */
+public class StrokeStream {
+
+	/**
+	 * Makes stroke ids unique across peers.
+	 */
+	private static final String origin = Long.toHexString(new Random().nextLong());
+
+	/**
+	 * Numbers strokes from this peer.
+	 */
+	private static final AtomicLong strokes = new AtomicLong();
+
+	/**
+	 * The board the stroke is drawn on.
+	 */
+	private final Whiteboard whiteboard;
+
+	/**
+	 * Id of the stroke, which has no ":" or "%".
+	 */
+	private final String id;
+
+	/**
+	 * Color of the stroke.
+	 */
+	private final Color color;
+
+	/**
+	 * Points not yet sent.
+	 */
+	private WhiteboardPath pending;
+
+	/**
+	 * Whether a timeout to send the pending points has been set.
+	 */
+	private boolean flushScheduled=false;
+
+	private boolean ended=false;
+
+	/**
+	 * Start a stroke, sending its first point.
+	 * @param whiteboard the board, which must be shared or remote
+	 * @param color
+	 * @param x
+	 * @param y
+	 */
+	public StrokeStream(Whiteboard whiteboard, Color color, int x, int y) {
+		this.whiteboard=whiteboard;
+		this.color=color;
+		this.id=origin+"-"+strokes.incrementAndGet();
+		WhiteboardPath first = new WhiteboardPath(color,1);
+		first.addPoint(x,y);
+		publish(WhiteboardApp.boardStrokeStart,first);
+		pending = new WhiteboardPath(color);
+	}
+
+	/**
+	 * Add a point to the stroke, to be sent with the next batch.
+	 * @param x
+	 * @param y
+	 */
+	public synchronized void addPoint(int x, int y) {
+		if(ended) return;
+		pending.addPoint(x,y);
+		if(!flushScheduled) {
+			flushScheduled=true;
+			Utils.getInstance().setTimeout(()->{
+				flush();
+			}, Utils.strokeBatchInterval);
+		}
+	}
+
+	/**
+	 * End the stroke, sending any points not yet sent first.
+	 */
+	public synchronized void end() {
+		if(ended) return;
+		flush();
+		ended=true;
+		publish(WhiteboardApp.boardStrokeEnd,null);
+	}
+
+	private synchronized void flush() {
+		flushScheduled=false;
+		if(ended || pending.length()==0) return;
+		publish(WhiteboardApp.boardStrokePoints,pending);
+		pending = new WhiteboardPath(color);
+	}
+
+	private void publish(String event, WhiteboardPath points) {
+		String data = whiteboard.getName()+"%"+id+"%"+
+				(points==null ? "" : PathCodec.encode(points));
+		whiteboard.publishStroke(event,data,null);
+	}
+}
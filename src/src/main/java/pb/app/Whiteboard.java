@@ -1,10 +1,19 @@
 package pb.app;
 
+import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Logger;
 
 import pb.managers.PeerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.utils.PersistentVector;
+import pb.utils.Utils;
 
 /**
  * Class to maintain whiteboard information. You should probably modify this
@@ -16,9 +25,11 @@ public class Whiteboard {
 	private static Logger log = Logger.getLogger(Whiteboard.class.getName());
 
 	/**
-	 * Paths for this whiteboard.
+	 * Paths for this whiteboard. Each version is immutable, so readers can
+	 * take the current one and use it without holding the lock while the
+	 * board changes.
 	 */
-	private ArrayList<WhiteboardPath> paths;
+	private volatile PersistentVector<WhiteboardPath> paths;
 
 	/**
 	 * Name of the whiteboard, peer:port:boarid
@@ -42,13 +53,105 @@ public class Whiteboard {
 	 */
 	private boolean remote=false;
 
+	/**
+	 * Strokes that other peers are still drawing on this board, by stroke id,
+	 * and the endpoint each came from, so that they can be ended if their
+	 * peer goes before ending them. They are drawn over the paths but are
+	 * not part of the board.
+	 */
+	private Map<String,WhiteboardPath> liveStrokes = new LinkedHashMap<>();
+	private Map<String,Endpoint> strokeOrigins = new HashMap<>();
+
+	/**
+	 * The recent operations on this board, if it is managed locally, so that
+	 * peers that are behind can be sent just what they missed.
+	 */
+	private OperationLog operations = new OperationLog(Utils.operationLogSize);
+
+	/**
+	 * The durable journal of this board, if it is managed locally and
+	 * journalling is enabled, otherwise null.
+	 */
+	private BoardJournal journal;
+
+	/**
+	 * For a remote board, the paths as of the version the host has confirmed.
+	 * The paths shown are these with the pending operations applied.
+	 */
+	private PersistentVector<WhiteboardPath> confirmedPaths = PersistentVector.empty();
+
+	/**
+	 * For a remote board, the operations applied locally that the host has
+	 * not yet acknowledged, oldest first. Only the oldest is sent at a time,
+	 * at the version the host has confirmed.
+	 */
+	private LinkedList<String> pendingOps = new LinkedList<>();
+
+	/**
+	 * Whether the oldest pending operation has been sent to the host.
+	 */
+	private boolean inFlight=false;
+
+	/**
+	 * Whether the board has asked the host for the updates it missed.
+	 */
+	private boolean catchingUp=false;
+
+	/**
+	 * Whether the board has to catch up once the operation sent is acknowledged.
+	 */
+	private boolean catchUpWanted=false;
+
+	/**
+	 * Whether the board is receiving the chunks of a snapshot from the host.
+	 */
+	private boolean receivingSnapshot=false;
+
+	/**
+	 * For a board managed locally, its paths encoded and in chunks for
+	 * {@link #streamTo(Endpoint)}: the full chunks and then the chunk being
+	 * filled, each "%PATHS". Once built they are kept up to date as the
+	 * board changes, so that the board is not encoded again for each peer
+	 * that joins.
+	 */
+	private ArrayList<String> fullChunks = new ArrayList<>();
+	private StringBuilder lastChunk = new StringBuilder();
+	private boolean chunksBuilt=false;
+
+	/**
+	 * The chunks as last sent, with the name and version of the board, and
+	 * the version they were sent at. Peers that join at the same version are
+	 * sent the same strings.
+	 */
+	private List<String> sentChunks;
+	private long sentChunksVersion=-1;
+
+	/**
+	 * Index of where the paths are on the board, which follows the paths.
+	 */
+	private PathIndex index = new PathIndex();
+
+	/**
+	 * How many of the first paths are the same as when the board was last
+	 * drawn, so that only the paths after them need drawing.
+	 */
+	private int drawnPaths=0;
+
+	/**
+	 * The contents of the board if it is a CRDT board, otherwise null. A CRDT
+	 * board is changed by {@link CrdtBoard} operations that every peer applies
+	 * as soon as it has them, rather than by updates the host puts in order,
+	 * and its version only counts the changes seen by this peer.
+	 */
+	private CrdtBoard crdt;
+
 	/**
 	 * Initialize the whiteboard.
 	 * @param remote is true if the whiteboard is remotely managed, otherwise
 	 * the whiteboard is locally managed.
 	 */
 	public Whiteboard(String name,boolean remote) {
-		paths = new ArrayList<>();
+		paths = PersistentVector.empty();
 		this.name=name;
 		this.version=0;
 		this.remote=remote;
@@ -60,9 +163,11 @@ public class Whiteboard {
 	 * @param name the board name, i.e. peer:port:boardid
 	 * @param data the board data, i.e. version%PATHS 
 	 */
-	public void whiteboardFromString(String name,String data) {
+	public synchronized void whiteboardFromString(String name,String data) {
 		String[] parts = data.split("%");
-		paths = new ArrayList<>();
+		confirmedPaths = PersistentVector.empty();
+		setPaths(PersistentVector.empty());
+		invalidateChunks();
 		this.name=name;
 		version=-1;
 		if(parts.length<1) {
@@ -79,10 +184,14 @@ public class Whiteboard {
 			for (int i = 1; i < parts.length; i++) {
 				String path = parts[i];
 				if (path.length() > 0) {
-					paths.add(new WhiteboardPath(path));
+					confirmedPaths = confirmedPaths.append(PathCodec.decode(path));
 				}
 			}
 		}
+		// anything not yet acknowledged is shown on top, and sent once
+		// the board has caught up
+		reapplyPending();
+		caughtUp();
 	}
 
 
@@ -91,21 +200,241 @@ public class Whiteboard {
 	 *
 	 * @return "name%version%" if the whiteboard has no paths or
 	 *         "name%version%PATHS" for the case when there are one or more paths,
-	 *         where each path is separated by a "%"
+	 *         where each path is separated by a "%" and encoded with
+	 *         {@link PathCodec#encode(WhiteboardPath)}
 	 */
 	public String toString() {
+		return getNameAndVersion()+pathsToString();
+	}
+
+	/**
+	 *
+	 * @return "%" if the whiteboard has no paths or "%PATHS" otherwise, as in
+	 * {@link #toString()}
+	 */
+	private String pathsToString() {
 		StringBuilder sb = new StringBuilder("");
-		sb.append(getNameAndVersion());
-		if(paths.size()==0)
+		if(chunksBuilt) {
+			for(String chunk : fullChunks) sb.append(chunk);
+			sb.append(lastChunk);
+			if(sb.length()==0) sb.append("%");
+		} else if(paths.size()==0)
 			sb.append("%");
 		else {
 			for (int i = 0; i < paths.size(); i++) {
-				sb.append("%"+paths.get(i));
+				sb.append('%').append(PathCodec.encode(paths.get(i)));
 			}
 		}
 		return sb.toString();
 	}
 
+	/**
+	 * Send the board to a peer as a sequence of BOARD_DATA_CHUNK, each with as
+	 * many paths as fit in {@link pb.utils.Utils#boardDataChunkSize}
+	 * characters, followed by BOARD_DATA_END. The chunks are taken with the
+	 * board locked, as of one version, but sent without it, so that a slow
+	 * peer does not hold up changes to the board. The peer is not sent
+	 * updates in the middle since it only listens to the board once it has
+	 * all of it.
+	 * @param endpoint
+	 */
+	public void streamTo(Endpoint endpoint) {
+		String nameAndVersion;
+		String chunkEvent;
+		List<String> chunks;
+		synchronized(this) {
+			nameAndVersion = getNameAndVersion();
+			if(crdt!=null) {
+				chunkEvent = WhiteboardApp.boardCrdtOps;
+				chunks = crdtChunks();
+			} else {
+				chunkEvent = WhiteboardApp.boardDataChunk;
+				chunks = dataChunks(nameAndVersion);
+			}
+		}
+		for(String chunk : chunks) {
+			endpoint.emit(chunkEvent,chunk);
+		}
+		endpoint.emit(WhiteboardApp.boardDataEnd,nameAndVersion);
+	}
+
+	/**
+	 * The BOARD_DATA_CHUNK of the board as it is now, which are kept and
+	 * not changed, so that peers that join at the same version are sent the
+	 * same strings.
+	 * @param nameAndVersion
+	 * @return the chunks
+	 */
+	private List<String> dataChunks(String nameAndVersion) {
+		if(sentChunks==null || sentChunksVersion!=version) {
+			if(!chunksBuilt) buildChunks();
+			sentChunks = new ArrayList<>(fullChunks.size()+1);
+			for(String chunk : fullChunks) {
+				sentChunks.add(nameAndVersion+chunk);
+			}
+			if(lastChunk.length()>0) {
+				sentChunks.add(nameAndVersion+lastChunk);
+			}
+			sentChunksVersion=version;
+		}
+		return sentChunks;
+	}
+
+	/**
+	 * The state of a CRDT board as BOARD_CRDT_OPS, each with as many
+	 * operations as fit in {@link pb.utils.Utils#boardDataChunkSize}
+	 * characters.
+	 * @return the chunks
+	 */
+	private List<String> crdtChunks() {
+		List<String> chunks = new ArrayList<>();
+		StringBuilder chunk = new StringBuilder();
+		for(String op : crdt.state()) {
+			if(chunk.length()>0 && chunk.length()+1+op.length()>Utils.boardDataChunkSize) {
+				chunks.add(name+chunk);
+				chunk.setLength(0);
+			}
+			chunk.append('%').append(op);
+		}
+		if(chunk.length()>0 || chunks.isEmpty()) {
+			// an empty board is still sent as one, so that the peer knows
+			// it is a CRDT board
+			chunks.add(name+chunk);
+		}
+		return chunks;
+	}
+
+	/**
+	 * Send the state of the board to a peer as BOARD_CRDT_OPS, if it is a
+	 * CRDT board.
+	 * @param endpoint
+	 * @return false if this is not a CRDT board
+	 */
+	public boolean sendCrdtState(Endpoint endpoint) {
+		List<String> chunks;
+		synchronized(this) {
+			if(crdt==null) return false;
+			chunks = crdtChunks();
+		}
+		for(String chunk : chunks) {
+			endpoint.emit(WhiteboardApp.boardCrdtOps,chunk);
+		}
+		return true;
+	}
+
+	/**
+	 * Encode all the paths into chunks.
+	 */
+	private void buildChunks() {
+		fullChunks.clear();
+		lastChunk.setLength(0);
+		for(WhiteboardPath path : paths) {
+			appendChunk(PathCodec.encode(path));
+		}
+		chunksBuilt=true;
+	}
+
+	/**
+	 * Add an encoded path to the chunk being filled, or to a new chunk if it
+	 * does not fit.
+	 * @param encodedPath
+	 */
+	private void appendChunk(String encodedPath) {
+		if(lastChunk.length()>0 &&
+				lastChunk.length()+1+encodedPath.length()>Utils.boardDataChunkSize) {
+			fullChunks.add(lastChunk.toString());
+			lastChunk.setLength(0);
+		}
+		lastChunk.append('%').append(encodedPath);
+	}
+
+	/**
+	 * Bring the chunks up to date with an operation, if they have been built.
+	 * @param op
+	 */
+	private void updateChunks(String op) {
+		if(!chunksBuilt || op.isEmpty()) return;
+		switch(op.charAt(0)) {
+		case OperationLog.addOp:
+			appendChunk(op.substring(1));
+			break;
+		case OperationLog.undoOp:
+			if(lastChunk.length()==0 && !fullChunks.isEmpty()) {
+				lastChunk.append(fullChunks.remove(fullChunks.size()-1));
+			}
+			if(lastChunk.length()>0) {
+				lastChunk.setLength(lastChunk.lastIndexOf("%"));
+			}
+			break;
+		case OperationLog.clearOp:
+			fullChunks.clear();
+			lastChunk.setLength(0);
+			break;
+		}
+	}
+
+	/**
+	 * Forget the chunks, when the paths are replaced.
+	 */
+	private void invalidateChunks() {
+		chunksBuilt=false;
+		fullChunks = new ArrayList<>();
+		lastChunk = new StringBuilder();
+		sentChunks=null;
+	}
+
+	/**
+	 * BOARD_DATA_CHUNK
+	 * Add a chunk of a snapshot from the host, starting the snapshot if it
+	 * is the first.
+	 * @param data the paths of the chunk, separated by "%"
+	 */
+	public synchronized void snapshotChunk(String data) {
+		if(!receivingSnapshot) {
+			receivingSnapshot=true;
+			confirmedPaths = PersistentVector.empty();
+			setPaths(PersistentVector.empty());
+		}
+		for(String path : data.split("%")) {
+			if(path.length()>0) {
+				WhiteboardPath decoded = PathCodec.decode(path);
+				confirmedPaths = confirmedPaths.append(decoded);
+				appendPath(decoded);
+			}
+		}
+	}
+
+	/**
+	 * BOARD_DATA_END
+	 * The snapshot from the host is complete.
+	 * @param snapshotVersion the version of the board in the snapshot
+	 * @return true if the board has pending operations on top of the
+	 * snapshot, so that it needs to be drawn again
+	 */
+	public synchronized boolean snapshotEnd(long snapshotVersion) {
+		// a CRDT board has its state as operations, already applied
+		if(crdt!=null) return false;
+		if(!receivingSnapshot) {
+			// a board with no paths has no chunks
+			confirmedPaths = PersistentVector.empty();
+			setPaths(PersistentVector.empty());
+		}
+		receivingSnapshot=false;
+		version=snapshotVersion;
+		boolean pending = !pendingOps.isEmpty();
+		reapplyPending();
+		caughtUp();
+		return pending;
+	}
+
+	/**
+	 *
+	 * @return true if the board is receiving the chunks of a snapshot
+	 */
+	public synchronized boolean isReceivingSnapshot() {
+		return receivingSnapshot;
+	}
+
 	/**
 	 * Draw the white board on the drawing area. Clears the draw
 	 * area and draws all paths.
@@ -113,8 +442,137 @@ public class Whiteboard {
 	 */
 	public void draw(DrawArea drawArea) {
 		drawArea.clear();
-		for(WhiteboardPath path : paths) {
-			drawArea.drawPath(path);
+		drawChanges(drawArea);
+	}
+
+	/**
+	 * Show the white board on the drawing area, from the image of it cached
+	 * when it was last shown if there is one, otherwise by drawing it.
+	 * @param drawArea
+	 */
+	public void show(DrawArea drawArea) {
+		synchronized(drawArea) {
+			if(!drawArea.showBoard(this)) {
+				draw(drawArea);
+				return;
+			}
+			drawChanges(drawArea);
+			synchronized(liveStrokes) {
+				for(WhiteboardPath stroke : liveStrokes.values()) {
+					drawArea.drawPath(stroke);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Draw the changes to the white board since it was last drawn on the draw
+	 * area: just the new paths if paths have only been added, otherwise the
+	 * paths from a checkpoint of the draw area before the first removed.
+	 * @param drawArea
+	 */
+	public void drawChanges(DrawArea drawArea) {
+		// the draw area is held throughout, so that changes are drawn in
+		// the order they are taken
+		synchronized(drawArea) {
+			PersistentVector<WhiteboardPath> now;
+			int unchanged;
+			synchronized(this) {
+				now=paths;
+				unchanged=drawnPaths;
+				drawnPaths=now.size();
+			}
+			synchronized(liveStrokes) {
+				if(drawArea.drawPaths(this,now,unchanged,liveStrokes.isEmpty())) {
+					for(WhiteboardPath stroke : liveStrokes.values()) {
+						drawArea.drawPath(stroke);
+					}
+				}
+			}
+		}
+	}
+
+	////
+	// Strokes being drawn, which do not update the version of the board
+	////
+
+	/**
+	 * Add points to a stroke being drawn by another peer, starting the
+	 * stroke if it is new.
+	 * @param strokeId
+	 * @param points
+	 * @param origin the endpoint the stroke came from
+	 * @return the part of the stroke to draw for the new points, which starts
+	 * from the last point the stroke had
+	 */
+	public WhiteboardPath appendStroke(String strokeId, WhiteboardPath points, Endpoint origin) {
+		synchronized(liveStrokes) {
+			WhiteboardPath stroke = liveStrokes.get(strokeId);
+			if(stroke==null) {
+				liveStrokes.put(strokeId,points);
+				strokeOrigins.put(strokeId,origin);
+				return points;
+			}
+			int n = points.length();
+			int[] xs = points.getXs();
+			int[] ys = points.getYs();
+			WhiteboardPath segment = new WhiteboardPath(stroke.getColor(),n+1);
+			segment.addPoint(stroke.getX(stroke.length()-1),stroke.getY(stroke.length()-1));
+			for(int i=0;i<n;i++) {
+				segment.addPoint(xs[i],ys[i]);
+				stroke.addPoint(xs[i],ys[i]);
+			}
+			return segment;
+		}
+	}
+
+	/**
+	 * End a stroke being drawn by another peer.
+	 * @param strokeId
+	 * @return true if the stroke was being drawn
+	 */
+	public boolean endStroke(String strokeId) {
+		synchronized(liveStrokes) {
+			strokeOrigins.remove(strokeId);
+			return liveStrokes.remove(strokeId)!=null;
+		}
+	}
+
+	/**
+	 * End the strokes that came from an endpoint, when it has stopped
+	 * listening to the board or has gone, since their ends will not come.
+	 * @param origin
+	 * @return the ids of the strokes ended
+	 */
+	public List<String> endStrokesFrom(Endpoint origin) {
+		List<String> ended = new ArrayList<>();
+		synchronized(liveStrokes) {
+			strokeOrigins.forEach((strokeId,endpoint)->{
+				if(endpoint==origin) ended.add(strokeId);
+			});
+			for(String strokeId : ended) {
+				strokeOrigins.remove(strokeId);
+				liveStrokes.remove(strokeId);
+			}
+		}
+		return ended;
+	}
+
+	/**
+	 * Send a stroke event to the other peers of the board: to the subscribers
+	 * if the board is shared or to the host if it is remote.
+	 * @param event one of the stroke events of {@link WhiteboardApp}
+	 * @param data peer:port:boardid%strokeid%POINTS
+	 * @param except a subscriber not to send to, i.e. the one that sent the
+	 * event to the host, or null
+	 */
+	public void publishStroke(String event, String data, Endpoint except) {
+		if(shared) {
+			for(Endpoint subscriber: subscribers) {
+				if(subscriber!=except) subscriber.emit(event,data);
+			}
+		} else if(remote && except==null) {
+			hostEndpoint.emit(event,data);
 		}
 	}
 
@@ -126,13 +584,16 @@ public class Whiteboard {
 	/**
 	 * SUBSCRIBE TO HOST
 	 * Connect this whiteboard with the peers that have selected this board once shared.
-	 * Keep track of whiteboard peers that are listenting to this board
+	 * Keep track of whiteboard peers that are listenting to this board.
+	 * Updates and strokes are sent to them from endpoint and timer threads
+	 * while peers join and leave, so the list is copied on write rather
+	 * than locked.
 	 */
 
-	private static ArrayList<Endpoint> subscribers = new ArrayList<Endpoint>();
+	private CopyOnWriteArrayList<Endpoint> subscribers = new CopyOnWriteArrayList<Endpoint>();
 
 	public void subscribeToHost(Endpoint endpoint){
-		subscribers.add(endpoint);
+		subscribers.addIfAbsent(endpoint);
 		// Listen on the subscriber endpoint for any events
 	}
 
@@ -142,23 +603,42 @@ public class Whiteboard {
 	 * 2. Publish to host if the board is remote whenever the addPath() is called
 	 */
 	private Endpoint hostEndpoint;
-	public void addHostEndpoint(Endpoint endpoint){
+	public synchronized void addHostEndpoint(Endpoint endpoint){
 		hostEndpoint = endpoint;
+		// anything sent to a previous host endpoint is sent again
+		inFlight = false;
+		catchUpWanted = false;
+		// a snapshot it sent in part left the board with some of the paths
+		// of no version, so the board has to be sent whole again
+		if(receivingSnapshot) {
+			receivingSnapshot = false;
+			version = -1;
+		}
 	}
 
 
 	/**
 	 * PUBLISH TO SUBSCRIBERS
 	 * boardId:version:path
+	 * @param except the subscriber that sent the update, which is acknowledged
+	 * instead, or null
 	 */
-	private void publishPathUpdate(WhiteboardPath newPath){
-		String data = name+"%"+version+"%"+newPath.toString();
+	private void publishPathUpdate(String encodedPath, Endpoint except){
+		String data = name+"%"+version+"%"+encodedPath;
 
 		for(Endpoint subscriber: subscribers){
-			subscriber.emit(WhiteboardApp.boardPathAccepted, data);
+			if(subscriber!=except) subscriber.emit(WhiteboardApp.boardPathAccepted, data);
 		}
 	}
 
+	/**
+	 * Acknowledge an update from a subscriber, which is applied to the current
+	 * version.
+	 */
+	private void acknowledge(Endpoint origin){
+		origin.emit(WhiteboardApp.boardAck, getNameAndVersion());
+	}
+
 	/**
 	 * LISTEN TO SUBSCRIBERS
 	 */
@@ -170,23 +650,26 @@ public class Whiteboard {
 	 * @param versionBeingUpdated should be the board version that the update applies to
 	 * @return true if the update was accepted, false if it was rejected
 	 */
-	private boolean remoteUpdated = false;
-
 	public synchronized boolean addPath(WhiteboardPath newPath,long versionBeingUpdated) {
 		if(version!=versionBeingUpdated) return false;
-		paths.add(newPath);
+		if(crdt!=null) {
+			localCrdtOp(crdt.add(newPath));
+			return true;
+		}
+		appendPath(newPath);
 
 		if (shared) {
 			// HOST
-			publishPathUpdate(newPath);
+			String encodedPath = PathCodec.encode(newPath);
+			record(OperationLog.add(encodedPath));
+			publishPathUpdate(encodedPath,null);
 			this.version++;
 		} else if (remote){
 			// CLIENT
-			String data = name+"%"+version+"%"+newPath.toString();
-			remoteUpdated = true;
-			this.version++;
-			hostEndpoint.emit(WhiteboardApp.boardPathUpdate,data);
+			pendingOps.add(OperationLog.add(PathCodec.encode(newPath)));
+			sendPending();
 		} else {
+			record(OperationLog.add(PathCodec.encode(newPath)));
 			this.version++;
 		}
 
@@ -194,24 +677,40 @@ public class Whiteboard {
 	}
 
 	// Server side
-	public synchronized boolean addPathFromClient(WhiteboardPath newPath,long versionBeingUpdated) {
-		if(version!=versionBeingUpdated) return false;
-		paths.add(newPath);
-		publishPathUpdate(newPath);
+
+	/**
+	 * Receive BOARD_PATH_UPDATE on HOST from PEER
+	 * Adding a path commutes with whatever the peer had not seen yet, so an
+	 * update for an older version is rebased onto the current version.
+	 * @param versionBeingUpdated
+	 * @return false if the version is newer than the board's
+	 */
+	public synchronized boolean addPathFromClient(WhiteboardPath newPath,long versionBeingUpdated,
+			Endpoint origin) {
+		if(crdt!=null || versionBeingUpdated>version) return false;
+		if(versionBeingUpdated<version) {
+			log.fine("rebasing path from version "+versionBeingUpdated+" to "+version);
+		}
+		appendPath(newPath);
+		String encodedPath = PathCodec.encode(newPath);
+		record(OperationLog.add(encodedPath));
+		publishPathUpdate(encodedPath,origin);
+		acknowledge(origin);
 		this.version++;
 		return true;
 	}
 
 	// Peer side
-	public synchronized boolean addPathFromHost(WhiteboardPath newPath,long versionBeingUpdated) {
-		if(remoteUpdated){
-			remoteUpdated = false;
-			return true;
-		}
-		if(version!=versionBeingUpdated) return false;
-		paths.add(newPath);
-		this.version++;
-		return true;
+
+	/**
+	 * Receive BOARD_PATH_ACCEPTED on PEER from HOST
+	 * @param encodedPath
+	 * @param versionBeingUpdated
+	 * @return false if updates before this one were missed, and the board
+	 * needs to {@link #catchUp()}
+	 */
+	public synchronized boolean addPathFromHost(String encodedPath,long versionBeingUpdated) {
+		return acceptedByHost(versionBeingUpdated,OperationLog.add(encodedPath));
 	}
 
 	/**
@@ -223,25 +722,29 @@ public class Whiteboard {
 	/**
 	 *
 	 */
-	private void publishClearUpdate(){
+	private void publishClearUpdate(Endpoint except){
 		for(Endpoint subscriber: subscribers){
-			subscriber.emit(WhiteboardApp.boardClearAccepted, getNameAndVersion());
+			if(subscriber!=except) subscriber.emit(WhiteboardApp.boardClearAccepted, getNameAndVersion());
 		}
 	}
 
 	public synchronized boolean clear(long versionBeingUpdated) {
 		if(version!=versionBeingUpdated) return false;
-		paths.clear();
+		if(crdt!=null) {
+			localCrdtOp(crdt.clear());
+			return true;
+		}
+		setPaths(PersistentVector.empty());
 
 		if (shared) {
-			publishClearUpdate();
+			record(String.valueOf(OperationLog.clearOp));
+			publishClearUpdate(null);
 			this.version++;
 		} else if (remote){
-			String data = getNameAndVersion();
-			remoteUpdated = true;
-			this.version++;
-			hostEndpoint.emit(WhiteboardApp.boardClearUpdate,data);
+			pendingOps.add(String.valueOf(OperationLog.clearOp));
+			sendPending();
 		} else {
+			record(String.valueOf(OperationLog.clearOp));
 			this.version++;
 		}
 
@@ -253,13 +756,19 @@ public class Whiteboard {
 	/**
 	 * Receive CLEAR_BOARD on HOST from PEER
 	 * HOST emits CLEAR_BOARD event to all its peers
+	 * A clear for an older version is rebased onto the current version if
+	 * the peer has only missed undos and clears, but not if it would remove
+	 * paths the peer has not seen.
 	 * @param versionBeingUpdated
-	 * @return
+	 * @return false if the clear conflicts
 	 */
-	public synchronized boolean clearFromPeer(long versionBeingUpdated) {
-		if(version!=versionBeingUpdated) return false;
-		paths.clear();
-		publishClearUpdate();
+	public synchronized boolean clearFromPeer(long versionBeingUpdated, Endpoint origin) {
+		if(crdt!=null) return false;
+		if(version!=versionBeingUpdated && !operations.onlyRemovalsSince(versionBeingUpdated)) return false;
+		setPaths(PersistentVector.empty());
+		record(String.valueOf(OperationLog.clearOp));
+		publishClearUpdate(origin);
+		acknowledge(origin);
 		this.version++;
 		return true;
 	}
@@ -269,44 +778,42 @@ public class Whiteboard {
 	/**
 	 * Receive CLEAR_BOARD on PEER from HOST
 	 * @param versionBeingUpdated
-	 * @return
+	 * @return false if updates before this one were missed, and the board
+	 * needs to {@link #catchUp()}
 	 */
 	public synchronized boolean clearFromHost(long versionBeingUpdated) {
-		if(remoteUpdated){
-			remoteUpdated = false;
-			return true;
-		}
-		if(version!=versionBeingUpdated) return false;
-		paths.clear();
-		this.version++;
-		return true;
+		return acceptedByHost(versionBeingUpdated,String.valueOf(OperationLog.clearOp));
 	}
 
 	/**
 	 * Remove the last path from the board.
 	 */
-	private void publishUndoUpdate(){
+	private void publishUndoUpdate(Endpoint except){
 		for(Endpoint subscriber: subscribers){
-			subscriber.emit(WhiteboardApp.boardUndoAccepted, getNameAndVersion());
+			if(subscriber!=except) subscriber.emit(WhiteboardApp.boardUndoAccepted, getNameAndVersion());
 		}
 	}
 
 	public synchronized boolean undo(long versionBeingUpdated) {
 		if(version!=versionBeingUpdated) return false;
+		if(crdt!=null) {
+			localCrdtOp(crdt.undo());
+			return true;
+		}
 
 		if(paths.size()>0) {
-			paths.remove(paths.size()-1);
+			popPath();
 		}
 
 		if (shared) {
-			publishUndoUpdate();
+			record(String.valueOf(OperationLog.undoOp));
+			publishUndoUpdate(null);
 			this.version++;
 		} else if (remote){
-			String data = getNameAndVersion();
-			remoteUpdated = true;
-			this.version++;
-			hostEndpoint.emit(WhiteboardApp.boardUndoUpdate,data);
+			pendingOps.add(String.valueOf(OperationLog.undoOp));
+			sendPending();
 		} else {
+			record(String.valueOf(OperationLog.undoOp));
 			this.version++;
 		}
 
@@ -318,15 +825,19 @@ public class Whiteboard {
 	/**
 	 * Receive BOARD_UNDO_UPDATE on HOST from PEER
 	 * HOST emits CLEAR_BOARD event to all its peers
+	 * An undo for an older version always conflicts, since the last path is
+	 * no longer the one the peer meant to remove.
 	 * @param versionBeingUpdated
-	 * @return
+	 * @return false if the undo conflicts
 	 */
-	public synchronized boolean undoFromPeer(long versionBeingUpdated) {
-		if(version!=versionBeingUpdated) return false;
+	public synchronized boolean undoFromPeer(long versionBeingUpdated, Endpoint origin) {
+		if(crdt!=null || version!=versionBeingUpdated) return false;
 		if(paths.size()>0) {
-			paths.remove(paths.size()-1);
+			popPath();
 		}
-		publishUndoUpdate();
+		record(String.valueOf(OperationLog.undoOp));
+		publishUndoUpdate(origin);
+		acknowledge(origin);
 		this.version++;
 		return true;
 	}
@@ -336,22 +847,422 @@ public class Whiteboard {
 	/**
 	 * Receive BOARD_UNDO_ACCEPTED on PEER from HOST
 	 * @param versionBeingUpdated
-	 * @return
+	 * @return false if updates before this one were missed, and the board
+	 * needs to {@link #catchUp()}
 	 */
 
 	public synchronized boolean undoFromHost(long versionBeingUpdated) {
-		if(remoteUpdated){
-			remoteUpdated = false;
-			return true;
+		return acceptedByHost(versionBeingUpdated,String.valueOf(OperationLog.undoOp));
+	}
+
+	/**
+	 * Record an operation of a board managed locally, which has been applied
+	 * to the paths but not yet to the version.
+	 * @param op
+	 */
+	private void record(String op) {
+		operations.append(version,op);
+		updateChunks(op);
+		if(journal!=null && journal.append(version,op)) {
+			journal.snapshot(version+1,pathsToString());
 		}
-		if(version!=versionBeingUpdated) return false;
-		if(paths.size()>0) {
-			paths.remove(paths.size()-1);
+	}
+
+	/**
+	 * Replay an operation from the journal of the board, when rebuilding it.
+	 * @param versionBeingUpdated the version the operation was applied to
+	 * @param op
+	 */
+	public synchronized void replay(long versionBeingUpdated, String op) {
+		// older operations are already in the snapshot
+		if(versionBeingUpdated<version) return;
+		if(versionBeingUpdated>version) {
+			log.severe("journal of "+name+" is missing versions "+version+
+					" to "+(versionBeingUpdated-1));
+			version=versionBeingUpdated;
+		}
+		setPaths(applyOp(paths,op),op);
+		operations.append(version,op);
+		updateChunks(op);
+		this.version++;
+	}
+
+	/**
+	 * Set the journal of a board managed locally.
+	 * @param journal
+	 */
+	public synchronized void setJournal(BoardJournal journal) {
+		this.journal=journal;
+	}
+
+	////
+	// Changing the paths, which keeps the index in step
+	////
+
+	private void appendPath(WhiteboardPath path) {
+		paths = paths.append(path);
+		index.add(path);
+	}
+
+	private void popPath() {
+		paths = paths.pop();
+		index.pop();
+		drawnPaths = Math.min(drawnPaths,paths.size());
+	}
+
+	/**
+	 * Replace the paths, with the index rebuilt when it is next queried and
+	 * the board drawn again from the start.
+	 * @param newPaths
+	 */
+	private void setPaths(PersistentVector<WhiteboardPath> newPaths) {
+		paths = newPaths;
+		index.invalidate(newPaths);
+		drawnPaths = 0;
+	}
+
+	/**
+	 * Replace the paths with the current paths after an operation, so that
+	 * the index and drawing can follow the operation rather than start over.
+	 * @param newPaths
+	 * @param op in the format of {@link OperationLog}
+	 */
+	private void setPaths(PersistentVector<WhiteboardPath> newPaths, String op) {
+		paths = newPaths;
+		switch(op.isEmpty() ? ' ' : op.charAt(0)) {
+		case OperationLog.addOp:
+			index.add(newPaths.get(newPaths.size()-1));
+			break;
+		case OperationLog.undoOp:
+			index.pop();
+			drawnPaths = Math.min(drawnPaths,newPaths.size());
+			break;
+		case OperationLog.clearOp:
+			index.clear();
+			drawnPaths = 0;
+			break;
+		default:
+			index.invalidate(newPaths);
+			drawnPaths = 0;
+		}
+	}
+
+	/**
+	 *
+	 * @param area
+	 * @return the paths that might touch the area, as their bounding boxes
+	 * do, in the order they are drawn
+	 */
+	public synchronized List<WhiteboardPath> pathsIn(Rectangle area) {
+		return index.pathsIn(area);
+	}
+
+	/**
+	 *
+	 * @param x
+	 * @param y
+	 * @param tolerance in pixels
+	 * @return the topmost path that passes within the tolerance of the point,
+	 * or null if there is none
+	 */
+	public synchronized WhiteboardPath pathAt(int x, int y, int tolerance) {
+		int i = index.pathAt(x,y,tolerance);
+		return i<0 ? null : paths.get(i);
+	}
+
+	////
+	// Keeping a remote board in step with its host
+	////
+
+	/**
+	 * Apply an operation to a list of paths.
+	 * @param paths
+	 * @param op
+	 * @return the paths with the operation applied
+	 */
+	private static PersistentVector<WhiteboardPath> applyOp(PersistentVector<WhiteboardPath> paths, String op) {
+		if(op.isEmpty()) {
+			log.severe("board operation is empty");
+			return paths;
 		}
+		switch(op.charAt(0)) {
+		case OperationLog.addOp:
+			paths = paths.append(PathCodec.decode(op.substring(1)));
+			break;
+		case OperationLog.undoOp:
+			if(paths.size()>0) {
+				paths = paths.pop();
+			}
+			break;
+		case OperationLog.clearOp:
+			paths = PersistentVector.empty();
+			break;
+		default:
+			log.severe("unknown board operation: "+op);
+		}
+		return paths;
+	}
+
+	/**
+	 * An operation of the host has been confirmed at the current version.
+	 * The pending operations are reapplied on top of it, if there are any.
+	 * @param op
+	 */
+	private void confirm(String op) {
+		confirmedPaths = applyOp(confirmedPaths,op);
 		this.version++;
+		if(pendingOps.isEmpty()) {
+			setPaths(confirmedPaths,op);
+		} else {
+			reapplyPending();
+		}
+	}
+
+	/**
+	 * Rebuild the paths from those confirmed by the host and the
+	 * operations still pending.
+	 */
+	private void reapplyPending() {
+		PersistentVector<WhiteboardPath> rebuilt = confirmedPaths;
+		for(String op : pendingOps) {
+			rebuilt = applyOp(rebuilt,op);
+		}
+		setPaths(rebuilt);
+	}
+
+	/**
+	 * An update of the host has been received.
+	 * @return true if it was applied or has already been, false if updates
+	 * before it were missed
+	 */
+	private boolean acceptedByHost(long versionBeingUpdated, String op) {
+		if(versionBeingUpdated<version) return true;
+		if(versionBeingUpdated>version) return false;
+		confirm(op);
+		return true;
+	}
+
+	/**
+	 * Send the oldest pending operation to the host, unless one is already
+	 * waiting to be acknowledged or the board is catching up.
+	 */
+	private void sendPending() {
+		if(inFlight || catchingUp || pendingOps.isEmpty()) return;
+		String op = pendingOps.getFirst();
+		inFlight=true;
+		switch(op.charAt(0)) {
+		case OperationLog.addOp:
+			hostEndpoint.emit(WhiteboardApp.boardPathUpdate,
+					name+"%"+version+"%"+op.substring(1));
+			break;
+		case OperationLog.undoOp:
+			hostEndpoint.emit(WhiteboardApp.boardUndoUpdate,getNameAndVersion());
+			break;
+		case OperationLog.clearOp:
+			hostEndpoint.emit(WhiteboardApp.boardClearUpdate,getNameAndVersion());
+			break;
+		}
+	}
+
+	/**
+	 * BOARD_ACK
+	 * The host has applied the pending operation that was sent.
+	 * @param versionUpdated the version the host applied it to
+	 */
+	public synchronized void acknowledged(long versionUpdated) {
+		if(!inFlight) {
+			log.warning("acknowledgement without an update sent: "+getNameAndVersion());
+			return;
+		}
+		inFlight=false;
+		String op = pendingOps.removeFirst();
+		if(versionUpdated==version) {
+			// already applied to the paths
+			confirmedPaths = applyOp(confirmedPaths,op);
+			this.version++;
+			sendPending();
+		} else {
+			// updates before it were missed, and it will come with them
+			reapplyPending();
+			catchUp();
+		}
+	}
+
+	/**
+	 * BOARD_REJECTED
+	 * The host could not apply the pending operation that was sent, because
+	 * it conflicts with updates this board had not seen. It is dropped, and
+	 * the board catches up.
+	 */
+	public synchronized void rejected() {
+		if(!inFlight) {
+			log.warning("rejection without an update sent: "+getNameAndVersion());
+			return;
+		}
+		inFlight=false;
+		log.info("update dropped by the host: "+pendingOps.removeFirst());
+		reapplyPending();
+		catchUp();
+	}
+
+	/**
+	 * Ask the host for the updates this board has missed, unless already
+	 * asked. If an operation is waiting to be acknowledged then the board
+	 * catches up once it is, since the updates might include it.
+	 */
+	public synchronized void catchUp() {
+		if(catchingUp) return;
+		if(inFlight) {
+			catchUpWanted=true;
+			return;
+		}
+		catchUpWanted=false;
+		catchingUp=true;
+		hostEndpoint.emit(WhiteboardApp.getBoardUpdates,getNameAndVersion());
+	}
+
+	/**
+	 * The board has caught up, so pending operations can be sent.
+	 */
+	private void caughtUp() {
+		catchingUp=false;
+		if(catchUpWanted) {
+			catchUp();
+		} else {
+			sendPending();
+		}
+	}
+
+	/**
+	 * GET_BOARD_UPDATES
+	 * Get the operations a peer has missed.
+	 * @param sinceVersion the version of the peer's copy of the board
+	 * @return the operations since that version, separated by "%", or null
+	 * if they are no longer all in the log and the peer needs the whole board
+	 */
+	public synchronized String getUpdatesSince(long sinceVersion) {
+		// the versions of a CRDT board differ from peer to peer
+		if(crdt!=null) return null;
+		return operations.since(sinceVersion);
+	}
+
+	/**
+	 * BOARD_UPDATES
+	 * Apply operations sent by the host, bringing this board up to date.
+	 * Operations this board already has are skipped, and the pending
+	 * operations are reapplied on top.
+	 * @param fromVersion the version the first operation applies to
+	 * @param ops the operations, separated by "%"
+	 * @return true if the operations were applied, false if the board is
+	 * behind the version they apply to
+	 */
+	public synchronized boolean applyUpdates(long fromVersion, String ops) {
+		if(fromVersion>version) return false;
+		if(!ops.isEmpty()) {
+			String[] parts = ops.split("%");
+			for(int i=(int) (version-fromVersion);i<parts.length;i++) {
+				confirmedPaths = applyOp(confirmedPaths,parts[i]);
+				this.version++;
+			}
+		}
+		reapplyPending();
+		caughtUp();
+		return true;
+	}
+
+	////
+	// CRDT boards
+	////
+
+	/**
+	 * Make this a CRDT board, if it is not one already. Paths added locally
+	 * that the host has not yet acknowledged are added again as CRDT
+	 * operations, and any other pending operations are dropped.
+	 * @param replica id of this peer, which has no ".", ":", "," or "%"
+	 * @return true if the board was not a CRDT board before
+	 */
+	public synchronized boolean makeCrdt(String replica) {
+		if(crdt!=null) return false;
+		crdt = new CrdtBoard(replica);
+		setPaths(crdt.visible());
+		invalidateChunks();
+		List<String> pending = new ArrayList<>(pendingOps);
+		pendingOps.clear();
+		confirmedPaths = PersistentVector.empty();
+		inFlight=false;
+		catchingUp=false;
+		catchUpWanted=false;
+		for(String op : pending) {
+			if(op.charAt(0)==OperationLog.addOp) {
+				localCrdtOp(crdt.add(PathCodec.decode(op.substring(1))));
+			}
+		}
 		return true;
 	}
 
+	/**
+	 *
+	 * @return true if this is a CRDT board
+	 */
+	public synchronized boolean isCrdt() {
+		return crdt!=null;
+	}
+
+	/**
+	 * An operation has been applied to the CRDT board locally, so send it to
+	 * the other peers.
+	 * @param op or null if the board did not change
+	 */
+	private void localCrdtOp(String op) {
+		if(op==null) return;
+		if(op.charAt(0)=='A') {
+			// a path added locally is always the last
+			PersistentVector<WhiteboardPath> visible = crdt.visible();
+			appendPath(visible.get(visible.size()-1));
+		} else {
+			setPaths(crdt.visible());
+		}
+		this.version++;
+		publishCrdt(op,null);
+	}
+
+	/**
+	 * BOARD_CRDT_OPS
+	 * Apply operations from another peer to the CRDT board, in whatever order
+	 * they arrive. Operations already applied have no effect.
+	 * @param ops the operations, separated by "%"
+	 * @return true if the paths of the board changed
+	 */
+	public synchronized boolean applyCrdtOps(String ops) {
+		boolean changed=false;
+		for(String op : ops.split("%")) {
+			changed |= crdt.apply(op);
+		}
+		if(changed) {
+			setPaths(crdt.visible());
+			this.version++;
+		}
+		return changed;
+	}
+
+	/**
+	 * Send operations on the CRDT board to the other peers: to the subscribers
+	 * if the board is shared or to the host if it is remote.
+	 * @param ops the operations, separated by "%"
+	 * @param except a subscriber not to send to, i.e. the one that sent the
+	 * operations to the host, or null
+	 */
+	public synchronized void publishCrdt(String ops, Endpoint except) {
+		String data = name+"%"+ops;
+		if(shared) {
+			for(Endpoint subscriber: subscribers) {
+				if(subscriber!=except) subscriber.emit(WhiteboardApp.boardCrdtOps,data);
+			}
+		} else if(remote && except==null && hostEndpoint!=null) {
+			hostEndpoint.emit(WhiteboardApp.boardCrdtOps,data);
+		}
+	}
+
 	/**
 	 * BOARD_DELETE
 	 * @return
@@ -369,6 +1280,12 @@ public class Whiteboard {
 		} else if (remote){
 			hostEndpoint.emit(WhiteboardApp.unlistenBoard, getName());
 		}
+		synchronized(this) {
+			if(journal!=null) {
+				journal.delete();
+				journal=null;
+			}
+		}
 	}
 
 	public Endpoint getHostEndpoint(){
@@ -379,6 +1296,15 @@ public class Whiteboard {
 		subscribers.remove(endpoint);
 	}
 
+	/**
+	 *
+	 * @return the paths of the board as they are now, which do not change
+	 * as the board does
+	 */
+	public PersistentVector<WhiteboardPath> getPaths() {
+		return paths;
+	}
+
 	/**
 	 *
 	 * @return peer:port:boardid%version
@@ -10,6 +10,8 @@ import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -80,6 +82,49 @@ public class WhiteboardApp {
 	 */
 	public static final String boardData = "BOARD_DATA";
 
+	/**
+	 * Emitted to another peer to give a chunk of the board data for a given
+	 * board, in reply to {@link #getBoardData}. The chunks come in order,
+	 * followed by {@link #boardDataEnd}, and each can be drawn as it arrives.
+	 * Argument must have format "host:port:boardid%version%PATHS".
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String boardDataChunk = "BOARD_DATA_CHUNK";
+
+	/**
+	 * Emitted to another peer after the last chunk of the board data for a
+	 * given board. Argument must have format "host:port:boardid%version".
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String boardDataEnd = "BOARD_DATA_END";
+
+	/**
+	 * Emitted to another peer to get the operations on a given board since a
+	 * given version, i.e. the version of the requesting peer's copy. Argument
+	 * must have format "host:port:boardid%version".
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String getBoardUpdates = "GET_BOARD_UPDATES";
+
+	/**
+	 * Emitted to another peer to give the operations on a given board since a
+	 * given version, in reply to {@link #getBoardUpdates}. If the operations
+	 * are no longer all available then the board data is sent instead.
+	 * Argument must have format "host:port:boardid%version%OPS", where each
+	 * operation is "A" followed by a PATH, "U" for an undo or "C" for a clear,
+	 * separated by "%".
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String boardUpdates = "BOARD_UPDATES";
+
 	/**
 	 * Emitted to another peer to add a path to a board managed by that peer.
 	 * Argument must have format "host:port:boardid%version%PATH". The numeric value
@@ -163,6 +208,78 @@ public class WhiteboardApp {
 	 */
 	public static final String boardError = "BOARD_ERROR";
 
+	/**
+	 * Emitted to the peer whose path, undo or clear update has been accepted,
+	 * in place of the accepted event that the other peers get. Argument must
+	 * have format "host:port:boardid%version", where version is the version
+	 * of the board the update was applied to.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String boardAck = "BOARD_ACK";
+
+	/**
+	 * Emitted to a peer whose path, undo or clear update could not be applied
+	 * because it conflicts with updates since its version: an undo that is not
+	 * for the current version, or a clear that would remove paths the peer
+	 * has not seen. Paths are added whatever their version. The peer should
+	 * drop the update and catch up with {@link #getBoardUpdates}.
+	 * Argument must have format "host:port:boardid%version", where version is
+	 * the version of the update.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String boardRejected = "BOARD_REJECTED";
+
+	/**
+	 * Emitted to another peer to start a stroke that is still being drawn, for
+	 * the peer to draw over the board until the stroke ends. The host sends it
+	 * on to its other subscribers. Argument must have format
+	 * "host:port:boardid%strokeid%PATH" where PATH has the first point.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String boardStrokeStart = "BOARD_STROKE_START";
+
+	/**
+	 * Emitted to another peer to add points to a stroke that is still being
+	 * drawn. Argument must have format "host:port:boardid%strokeid%PATH" where
+	 * PATH has the points that follow those already sent.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String boardStrokePoints = "BOARD_STROKE_POINTS";
+
+	/**
+	 * Emitted to another peer to end a stroke, which is then committed with a
+	 * path update. Argument must have format "host:port:boardid%strokeid%".
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String boardStrokeEnd = "BOARD_STROKE_END";
+
+	/**
+	 * Emitted to another peer with operations on a CRDT board, which every
+	 * peer applies as soon as it has them, in whatever order they arrive. The
+	 * host sends them on to its other subscribers. The host also sends the
+	 * state of a CRDT board this way, in place of BOARD_DATA_CHUNK before
+	 * BOARD_DATA_END and in place of BOARD_REJECTED to a peer that sent an
+	 * update not knowing the board is a CRDT board. The state is sent in at
+	 * least one BOARD_CRDT_OPS, which has no OPS if the board is empty, so
+	 * that the peer always knows. Argument must have format
+	 * "host:port:boardid%OPS" where OPS are operations of {@link CrdtBoard}
+	 * separated by "%".
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String boardCrdtOps = "BOARD_CRDT_OPS";
+
 	/**
 	 * White board map from board name to board object
 	 */
@@ -179,6 +296,43 @@ public class WhiteboardApp {
 	 */
 	String peerport="standalone"; // a default value for the non-distributed version
 	String clientPort = "";
+
+	/**
+	 * Simplifies paths drawn locally before they are added and published.
+	 */
+	PathSimplifier pathSimplifier;
+
+	/**
+	 * Whether paths are smoothed when drawn on the screen.
+	 */
+	boolean pathSmoothing;
+
+	/**
+	 * The stroke being drawn locally, if it is being streamed to other peers.
+	 */
+	StrokeStream liveStroke;
+
+	/**
+	 * Directory of the journals of boards managed by this peer, or null if
+	 * boards are not journalled.
+	 */
+	File journalDirectory;
+
+	/**
+	 * Whether boards created by this peer are CRDT boards.
+	 */
+	boolean crdtBoards=false;
+
+	/**
+	 * How many bytes of board images the drawing area caches.
+	 */
+	long rasterCacheBytes=Utils.rasterCacheBytes;
+
+	/**
+	 * Id of this peer in the operations on CRDT boards.
+	 */
+	String replicaId = Long.toHexString(new Random().nextLong());
+
 	/*
 	 * GUI objects, you probably don't need to modify these things... you don't
 	 * need to modify these things... don't modify these things [LOTR reference?].
@@ -187,6 +341,7 @@ public class WhiteboardApp {
 	JButton clearBtn, blackBtn, redBtn, createBoardBtn, deleteBoardBtn, undoBtn;
 	JCheckBox sharedCheckbox ;
 	DrawArea drawArea;
+	BoardRenderer renderer;
 	JComboBox<String> boardComboBox;
 	boolean modifyingComboBox=false;
 	boolean modifyingCheckBox=false;
@@ -198,7 +353,29 @@ public class WhiteboardApp {
 	 */
 	public WhiteboardApp(int peerPort,String whiteboardServerHost,
 						 int whiteboardServerPort) {
+		this(peerPort,whiteboardServerHost,whiteboardServerPort,
+				Utils.pathTolerance,Utils.pathMinDistance,Utils.pathSmoothing,null);
+	}
+
+	/**
+	 * Initialize the white board app.
+	 * @param pathTolerance in pixels, for simplifying paths drawn locally
+	 * @param pathMinDistance in pixels, between points of paths drawn locally
+	 * @param pathSmoothing whether to smooth paths when drawing them
+	 * @param journalDirectory where to journal boards so that they are
+	 * restored when the peer restarts, or null to not journal them
+	 */
+	public WhiteboardApp(int peerPort,String whiteboardServerHost,
+						 int whiteboardServerPort,double pathTolerance,
+						 double pathMinDistance,boolean pathSmoothing,
+						 String journalDirectory) {
 		whiteboards=new HashMap<>();
+		pathSimplifier=new PathSimplifier(pathTolerance,pathMinDistance);
+		this.pathSmoothing=pathSmoothing;
+		if(journalDirectory!=null) {
+			this.journalDirectory=new File(journalDirectory);
+			this.journalDirectory.mkdirs();
+		}
 
 		acceptPeerConnections(peerPort,whiteboardServerHost,whiteboardServerPort);
 	}
@@ -222,6 +399,10 @@ public class WhiteboardApp {
 				String boardId = (String)args2[0];
 				onGetBoardData(endpoint, boardId);
 
+			}).on(getBoardUpdates, args2 ->{
+
+				onGetBoardUpdates(endpoint,(String)args2[0]);
+
 			}).on(boardClearUpdate, args2->{
 
 				String boardName = getBoardName((String)args2[0]);
@@ -240,6 +421,22 @@ public class WhiteboardApp {
 				Whiteboard hostBoard = whiteboards.get(boardName);
 				onBoardPathUpdateFromClient((String)args2[0],hostBoard, endpoint);
 
+			}).on(boardStrokeStart, args2 ->{
+
+				onStrokeUpdateFromClient(boardStrokeStart,(String)args2[0],endpoint);
+
+			}).on(boardStrokePoints, args2 ->{
+
+				onStrokeUpdateFromClient(boardStrokePoints,(String)args2[0],endpoint);
+
+			}).on(boardStrokeEnd, args2 ->{
+
+				onStrokeUpdateFromClient(boardStrokeEnd,(String)args2[0],endpoint);
+
+			}).on(boardCrdtOps, args2 ->{
+
+				onCrdtOpsFromClient((String)args2[0],endpoint);
+
 			}).on(unlistenBoard, args2 -> {
 				String boardName = getBoardName((String)args2[0]);
 				onUnlistenFromClient(boardName,endpoint);
@@ -250,15 +447,18 @@ public class WhiteboardApp {
 		}).on(PeerManager.peerStopped,(args)->{
 			Endpoint endpoint = (Endpoint)args[0];
 			log.info("Disconnected from peer: "+endpoint.getOtherEndpointId());
+			endStrokesFrom(endpoint);
 		}).on(PeerManager.peerError,(args)->{
 			Endpoint endpoint = (Endpoint)args[0];
 			log.info("There was an error communicating with the peer: "
 					+endpoint.getOtherEndpointId());
+			endStrokesFrom(endpoint);
 		}).on(PeerManager.peerServerManager, (args)->{
 			ServerManager serverManager = (ServerManager)args[0];
 			serverManager.on(IOThread.ioThread, (args2)->{
 				peerport = (String) args2[0];
 				show(peerport);
+				restoreBoards();
 				connectToServer(whiteboardServerHost,whiteboardServerPort);
 			});
 		});
@@ -326,6 +526,14 @@ public class WhiteboardApp {
 
 	public void onSharingBoard(String sharedBoardName){
 
+		// a copy of the board we already have only needs what it missed
+		Whiteboard known;
+		synchronized(whiteboards) {
+			known = whiteboards.get(sharedBoardName);
+		}
+		boolean catchUp = known!=null && known.isRemote() && known.getVersion()>=0
+				&& !known.isReceivingSnapshot();
+
 		try{
 			ClientManager clientManager = peerManager.connect(getPort(sharedBoardName),getIP(sharedBoardName));
 			clientManager.on(PeerManager.peerStarted, (args)->{
@@ -335,7 +543,7 @@ public class WhiteboardApp {
 				Endpoint endpoint = (Endpoint)args[0];
 
 
-				Whiteboard whiteboard = new Whiteboard(sharedBoardName,true);
+				Whiteboard whiteboard = catchUp ? known : new Whiteboard(sharedBoardName,true);
 
 				addBoard(whiteboard,false);
 				whiteboard.addHostEndpoint(endpoint);
@@ -348,6 +556,33 @@ public class WhiteboardApp {
 					log.info("Listen Board: " + sharedBoardName);
 				});
 
+				// Draw each chunk of the board data as it arrives, and once it
+				// has all arrived listen to the board
+				endpoint.on(boardDataChunk, args2 -> {
+					onBoardDataChunk(whiteboard,(String)args2[0]);
+				}).on(boardDataEnd, args2 -> {
+					onBoardDataEnd(whiteboard,(String)args2[0]);
+					endpoint.emit(listenBoard,sharedBoardName);
+					log.info("Listen Board: " + sharedBoardName);
+				});
+
+				// On catching up with what the board missed, listen to it
+				endpoint.on(boardUpdates, args2 -> {
+					if(onBoardUpdates(whiteboard,(String)args2[0])) {
+						endpoint.emit(listenBoard,sharedBoardName);
+					} else {
+						endpoint.emit(getBoardData,sharedBoardName);
+					}
+				});
+
+				// Get notified that our own update has been accepted or rejected
+				endpoint.on(boardAck, args2 -> {
+					whiteboard.acknowledged(getBoardVersion((String)args2[0]));
+				}).on(boardRejected, args2 -> {
+					log.info("Update rejected, catching up: "+(String)args2[0]);
+					whiteboard.rejected();
+				});
+
 				// Get notified that a path has been accepted by the host, so added it
 				endpoint.on(boardPathAccepted, args2 -> {
 					onBoardPathUpdate((String)args2[0],whiteboard);
@@ -363,22 +598,43 @@ public class WhiteboardApp {
 					onUndoUpdate((String)args2[0],whiteboard);
 				});
 
+				// Strokes still being drawn by other peers
+				endpoint.on(boardStrokeStart, args2 -> {
+					onStrokeUpdate(boardStrokeStart,(String)args2[0],whiteboard,endpoint);
+				}).on(boardStrokePoints, args2 -> {
+					onStrokeUpdate(boardStrokePoints,(String)args2[0],whiteboard,endpoint);
+				}).on(boardStrokeEnd, args2 -> {
+					onStrokeUpdate(boardStrokeEnd,(String)args2[0],whiteboard,endpoint);
+				});
+
+				// Operations on a CRDT board, from the host or relayed by it
+				endpoint.on(boardCrdtOps, args2 -> {
+					onCrdtOps((String)args2[0],whiteboard);
+				});
+
 				// Delete board accepted on the host
 				endpoint.on(boardDeleted, args2 -> {
 					deleteBoardFromHost((String)args2[0]);
 				});
 
-				// Get the board data from the host
-				endpoint.emit(getBoardData,sharedBoardName);
-				log.info("Get Board Data"+sharedBoardName);
 			}).on(PeerManager.peerStopped,(args)->{
 				Endpoint endpoint = (Endpoint)args[0];
 				log.info("Disconnected from peer: "+endpoint.getOtherEndpointId());
+				endStrokesFrom(endpoint);
 			}).on(PeerManager.peerError,(args)->{
 				Endpoint endpoint = (Endpoint)args[0];
 				log.info("There was an error communicating with the peer: "
 						+endpoint.getOtherEndpointId());
+				endStrokesFrom(endpoint);
 			});
+			// Get the board data from the host as part of starting the session
+			if(catchUp) {
+				clientManager.sendOnStart(getBoardUpdates,known.getNameAndVersion());
+				log.info("Get Board Updates"+known.getNameAndVersion());
+			} else {
+				clientManager.sendOnStart(getBoardData,sharedBoardName);
+				log.info("Get Board Data"+sharedBoardName);
+			}
 			clientManager.start();
 		} catch (Exception e){
 			log.info("error");
@@ -442,6 +698,26 @@ public class WhiteboardApp {
 		return Long.parseLong(parts[1]);
 	}
 
+	/**
+	 *
+	 * @param data = peer:port:boardid%strokeid%PATH
+	 * @return strokeid
+	 */
+	public static String getStrokeId(String data) {
+		String[] parts=data.split("%",3);
+		return parts[1];
+	}
+
+	/**
+	 *
+	 * @param data = peer:port:boardid%OPS
+	 * @return OPS
+	 */
+	public static String getCrdtOps(String data) {
+		String[] parts=data.split("%",2);
+		return parts.length>1 ? parts[1] : "";
+	}
+
 	/**
 	 *
 	 * @param data = peer:port:boardid%version%PATHS
@@ -482,6 +758,60 @@ public class WhiteboardApp {
 
 	public void onBoardData(Whiteboard whiteboard, String sharedBoardName, String data){
 		whiteboard.whiteboardFromString(sharedBoardName,getBoardData(data));
+		if (selectedBoard!=null && selectedBoard.getName().equals(whiteboard.getName())){
+			drawSelectedWhiteboard();
+		}
+	}
+
+	/**
+	 * BOARD_DATA_CHUNK
+	 * @param whiteboard
+	 * @param data
+	 */
+	public void onBoardDataChunk(Whiteboard whiteboard, String data){
+		boolean first = !whiteboard.isReceivingSnapshot();
+		whiteboard.snapshotChunk(getBoardPaths(data));
+		if (selectedBoard!=null && selectedBoard.getName().equals(whiteboard.getName())){
+			// the board stays the one shown, so that the paths of the
+			// following chunks and the updates after are drawn on it
+			if(first) {
+				renderer.redraw(whiteboard);
+			} else {
+				renderer.drawChanges(whiteboard);
+			}
+		}
+	}
+
+	/**
+	 * BOARD_DATA_END
+	 * @param whiteboard
+	 * @param data
+	 */
+	public void onBoardDataEnd(Whiteboard whiteboard, String data){
+		boolean first = !whiteboard.isReceivingSnapshot();
+		boolean pending = whiteboard.snapshotEnd(getBoardVersion(data));
+		if ((first || pending) && selectedBoard!=null
+				&& selectedBoard.getName().equals(whiteboard.getName())){
+			drawSelectedWhiteboard();
+		}
+	}
+
+	/**
+	 * BOARD_UPDATES
+	 * @param whiteboard
+	 * @param data
+	 * @return true if the board is now up to date, false if it was not at the
+	 * version the updates apply to and so needs the whole board
+	 */
+	public boolean onBoardUpdates(Whiteboard whiteboard, String data){
+		if(!whiteboard.applyUpdates(getBoardVersion(data),getBoardPaths(data))){
+			log.warning("board updates do not apply to "+whiteboard.getNameAndVersion());
+			return false;
+		}
+		if (selectedBoard!=null && selectedBoard.getName().equals(whiteboard.getName())){
+			drawSelectedWhiteboard();
+		}
+		return true;
 	}
 
 	/**
@@ -492,14 +822,11 @@ public class WhiteboardApp {
 	public void onBoardPathUpdate(String eventArgs, Whiteboard whiteboard){
 
 		if (getBoardName(eventArgs).equals(whiteboard.getName())){
-			WhiteboardPath updatedPath = new WhiteboardPath(getBoardPaths(eventArgs));
-			if(!whiteboard.addPathFromHost(updatedPath, getBoardVersion(eventArgs))){
-				whiteboard.getHostEndpoint().emit(boardError,"Version mismatch");
-			}
-			if (selectedBoard.getName().equals(whiteboard.getName())){
-				drawArea.clear();
-				whiteboard.draw(drawArea);
-				log.info(updatedPath.toString());
+			if(!whiteboard.addPathFromHost(getBoardPaths(eventArgs), getBoardVersion(eventArgs))){
+				// missed some updates, the board is redrawn once it has them
+				whiteboard.catchUp();
+			} else if (selectedBoard!=null && selectedBoard.getName().equals(whiteboard.getName())){
+				renderer.drawChanges(whiteboard);
 			}
 		}
 
@@ -511,11 +838,11 @@ public class WhiteboardApp {
 	public void onClearBoardUpdate(String eventArgs, Whiteboard whiteboard){
 		if (getBoardName(eventArgs).equals(whiteboard.getName())){
 			if(!whiteboard.clearFromHost(getBoardVersion(eventArgs))){
-				whiteboard.getHostEndpoint().emit(boardError,"Version mismatch");
+				// missed some updates, the board is redrawn once it has them
+				whiteboard.catchUp();
 			}else{
-				if (selectedBoard.getName().equals(whiteboard.getName())){
-					drawArea.clear();
-					whiteboard.draw(drawArea);
+				if (selectedBoard!=null && selectedBoard.getName().equals(whiteboard.getName())){
+					renderer.drawChanges(whiteboard);
 					log.info("Clear Board"+whiteboard.getName());
 				}
 			}
@@ -528,17 +855,41 @@ public class WhiteboardApp {
 	public void onUndoUpdate(String eventArgs, Whiteboard whiteboard){
 		if (getBoardName(eventArgs).equals(whiteboard.getName())){
 			if(!whiteboard.undoFromHost(getBoardVersion(eventArgs))){
-				whiteboard.getHostEndpoint().emit(boardError,"Version mismatch");
+				// missed some updates, the board is redrawn once it has them
+				whiteboard.catchUp();
 			}else{
-				if (selectedBoard.getName().equals(whiteboard.getName())){
-					drawArea.clear();
-					whiteboard.draw(drawArea);
+				if (selectedBoard!=null && selectedBoard.getName().equals(whiteboard.getName())){
+					renderer.drawChanges(whiteboard);
 					log.info("Undo Board"+whiteboard.getName());
 				}
 			}
 		}
 	}
 
+	/**
+	 * BOARD_STROKE_START, BOARD_STROKE_POINTS and BOARD_STROKE_END
+	 */
+	public void onStrokeUpdate(String event, String eventArgs, Whiteboard whiteboard, Endpoint endpoint){
+		if (getBoardName(eventArgs).equals(whiteboard.getName())){
+			drawStrokeUpdate(event,eventArgs,whiteboard,endpoint);
+		}
+	}
+
+	/**
+	 * BOARD_CRDT_OPS
+	 * The first operations received make the board a CRDT board.
+	 */
+	public void onCrdtOps(String eventArgs, Whiteboard whiteboard){
+		if (getBoardName(eventArgs).equals(whiteboard.getName())){
+			boolean changed = whiteboard.makeCrdt(replicaId);
+			changed |= whiteboard.applyCrdtOps(getCrdtOps(eventArgs));
+			if (changed && selectedBoard!=null
+					&& selectedBoard.getName().equals(whiteboard.getName())){
+				renderer.drawChanges(whiteboard);
+			}
+		}
+	}
+
 	/**
 	 * BOARD UNLISTEN
 	 */
@@ -546,6 +897,7 @@ public class WhiteboardApp {
 	public void onUnlistenFromClient(String boardName, Endpoint endpoint){
 		Whiteboard hostBoard = whiteboards.get(boardName);
 		hostBoard.unsubscribe(endpoint);
+		endStrokesFrom(endpoint,hostBoard);
 		log.info("Receive Client Unlisten"+hostBoard .getName());
 	}
 
@@ -558,13 +910,12 @@ public class WhiteboardApp {
 	 */
 	public void onBoardPathUpdateFromClient(String eventArgs, Whiteboard whiteboard, Endpoint endpoint){
 		if (getBoardName(eventArgs).equals(whiteboard.getName())){
-			WhiteboardPath updatedPath = new WhiteboardPath(getBoardPaths(eventArgs));
-			if(!whiteboard.addPathFromClient(updatedPath, getBoardVersion(eventArgs))){
-				endpoint.emit(boardError,"A peer board that attempted to draw has version mismatch. Path not updated.");
+			WhiteboardPath updatedPath = PathCodec.decode(getBoardPaths(eventArgs));
+			if(!whiteboard.addPathFromClient(updatedPath, getBoardVersion(eventArgs), endpoint)){
+				rejectUpdate(eventArgs,whiteboard,endpoint);
 			}
 			if (selectedBoard.getName().equals(whiteboard.getName())){
-				drawArea.clear();
-				whiteboard.draw(drawArea);
+				renderer.drawChanges(whiteboard);
 				log.info(updatedPath.toString());
 			}
 		}
@@ -578,12 +929,11 @@ public class WhiteboardApp {
 	public void onClearBoardUpdateFromClient(String eventArgs, Whiteboard whiteboard, Endpoint endpoint){
 
 		if (getBoardName(eventArgs).equals(whiteboard.getName())){
-			if(!whiteboard.clearFromPeer(getBoardVersion(eventArgs))){
-				endpoint.emit(boardError,"A peer board that attempted to clear has version mismatch. Board not cleared.");
+			if(!whiteboard.clearFromPeer(getBoardVersion(eventArgs), endpoint)){
+				rejectUpdate(eventArgs,whiteboard,endpoint);
 			}else{
 				if (selectedBoard.getName().equals(whiteboard.getName())){
-					drawArea.clear();
-					whiteboard.draw(drawArea);
+					renderer.drawChanges(whiteboard);
 					log.info("Clear Board Accepted"+ whiteboard.getName());
 				}
 			}
@@ -595,18 +945,110 @@ public class WhiteboardApp {
 	 */
 	public void onUndoUpdateFromClient(String eventArgs, Whiteboard whiteboard, Endpoint endpoint){
 		if (getBoardName(eventArgs).equals(whiteboard.getName())){
-			if(!whiteboard.undoFromPeer(getBoardVersion(eventArgs))){
-				endpoint.emit(boardError,"A peer board that attempted to undo has version mismatch. Undo not accepted.");
+			if(!whiteboard.undoFromPeer(getBoardVersion(eventArgs), endpoint)){
+				rejectUpdate(eventArgs,whiteboard,endpoint);
 			}else{
 				if (selectedBoard.getName().equals(whiteboard.getName())){
-					drawArea.clear();
-					whiteboard.draw(drawArea);
+					renderer.drawChanges(whiteboard);
 					log.info("Undo Update Accepted"+ whiteboard.getName());
 				}
 			}
 		}
 	}
 
+	/**
+	 * BOARD_REJECTED
+	 * Reject an update from a peer. If the board is a CRDT board, which the
+	 * peer does not know, the state of the board is sent to the peer
+	 * instead, so that it makes its copy a CRDT board and sends its paths
+	 * again as CRDT operations.
+	 */
+	private void rejectUpdate(String eventArgs, Whiteboard whiteboard, Endpoint endpoint){
+		if (!whiteboard.sendCrdtState(endpoint)){
+			endpoint.emit(boardRejected,whiteboard.getName()+"%"+getBoardVersion(eventArgs));
+		}
+	}
+
+	/**
+	 * BOARD_STROKE_START, BOARD_STROKE_POINTS and BOARD_STROKE_END
+	 * Draw the stroke and send it on to the other peers listening to the board.
+	 */
+	public void onStrokeUpdateFromClient(String event, String eventArgs, Endpoint endpoint){
+		Whiteboard whiteboard = whiteboards.get(getBoardName(eventArgs));
+		if (whiteboard!=null){
+			drawStrokeUpdate(event,eventArgs,whiteboard,endpoint);
+			whiteboard.publishStroke(event,eventArgs,endpoint);
+		}
+	}
+
+	/**
+	 * BOARD_CRDT_OPS
+	 * Apply the operations and send them on to the other peers listening to
+	 * the board.
+	 */
+	public void onCrdtOpsFromClient(String eventArgs, Endpoint endpoint){
+		Whiteboard whiteboard = whiteboards.get(getBoardName(eventArgs));
+		if (whiteboard==null || !whiteboard.isCrdt()){
+			endpoint.emit(boardError,"Not a CRDT board: "+getBoardName(eventArgs));
+			return;
+		}
+		String ops = getCrdtOps(eventArgs);
+		boolean changed = whiteboard.applyCrdtOps(ops);
+		whiteboard.publishCrdt(ops,endpoint);
+		if (changed && selectedBoard!=null && selectedBoard.getName().equals(whiteboard.getName())){
+			renderer.drawChanges(whiteboard);
+		}
+	}
+
+	/**
+	 * Update a stroke being drawn on a board by another peer, drawing just the
+	 * new points, or redrawing the board without the stroke when it ends.
+	 */
+	private void drawStrokeUpdate(String event, String eventArgs, Whiteboard whiteboard, Endpoint endpoint){
+		String strokeId = getStrokeId(eventArgs);
+		boolean selected = selectedBoard!=null && selectedBoard.getName().equals(whiteboard.getName());
+		if (event.equals(boardStrokeEnd)){
+			if (whiteboard.endStroke(strokeId) && selected){
+				drawSelectedWhiteboard();
+			}
+		} else {
+			WhiteboardPath segment = whiteboard.appendStroke(strokeId,
+					PathCodec.decode(getBoardPaths(eventArgs)),endpoint);
+			if (selected){
+				renderer.drawPath(segment);
+			}
+		}
+	}
+
+	/**
+	 * End the strokes on a board that a peer was drawing, when it has stopped
+	 * listening to the board or has gone, and tell the other subscribers
+	 * that they have ended.
+	 */
+	private void endStrokesFrom(Endpoint endpoint, Whiteboard whiteboard){
+		List<String> ended = whiteboard.endStrokesFrom(endpoint);
+		if (ended.isEmpty()) return;
+		for (String strokeId : ended){
+			whiteboard.publishStroke(boardStrokeEnd,whiteboard.getName()+"%"+strokeId+"%",endpoint);
+		}
+		if (selectedBoard!=null && selectedBoard.getName().equals(whiteboard.getName())){
+			drawSelectedWhiteboard();
+		}
+	}
+
+	/**
+	 * End the strokes that a peer was drawing on any board, when it has gone.
+	 */
+	private void endStrokesFrom(Endpoint endpoint){
+		List<Whiteboard> boards;
+		synchronized(whiteboards) {
+			boards = new ArrayList<>(whiteboards.values());
+		}
+		for (Whiteboard whiteboard : boards){
+			endStrokesFrom(endpoint,whiteboard);
+		}
+	}
+
 	/**
 	 * Other stuff, probably belongs right above, move it later on!
 	 * @param endpoint
@@ -614,7 +1056,28 @@ public class WhiteboardApp {
 	 */
 
 	public void onGetBoardData(Endpoint endpoint, String sharedBoard){
-		endpoint.emit(boardData,whiteboards.get(sharedBoard).toString());
+		Whiteboard whiteboard = whiteboards.get(sharedBoard);
+		if(whiteboard==null){
+			endpoint.emit(boardError,"No such board: "+sharedBoard);
+			return;
+		}
+		whiteboard.streamTo(endpoint);
+	}
+
+	public void onGetBoardUpdates(Endpoint endpoint, String data){
+		Whiteboard whiteboard = whiteboards.get(getBoardName(data));
+		if(whiteboard==null){
+			endpoint.emit(boardError,"No such board: "+getBoardName(data));
+			return;
+		}
+		long version = getBoardVersion(data);
+		String ops = whiteboard.getUpdatesSince(version);
+		if(ops==null){
+			// too far behind, so send the whole board
+			whiteboard.streamTo(endpoint);
+		} else {
+			endpoint.emit(boardUpdates,whiteboard.getName()+"%"+version+"%"+ops);
+		}
 	}
 
 	public void onListenBoard(Endpoint remoteEndpoint, String remoteBoardName){
@@ -676,6 +1139,7 @@ public class WhiteboardApp {
 			Whiteboard whiteboard = whiteboards.get(boardname);
 			if(whiteboard!=null) {
 				whiteboards.remove(boardname);
+				if(drawArea!=null) drawArea.forget(whiteboard);
 				log.info("Delete Board"+boardname);
 				if(whiteboard.isShared()){
 					whiteboard.delete();
@@ -684,6 +1148,8 @@ public class WhiteboardApp {
 					whiteboard.delete();
 					ClientManager clientManager = remoteManagers.get(boardname);
 					clientManager.shutdown();
+				} else {
+					whiteboard.delete();
 				}
 			}
 		}
@@ -695,6 +1161,7 @@ public class WhiteboardApp {
 			Whiteboard whiteboard = whiteboards.get(boardname);
 			if(whiteboard!=null) {
 				whiteboards.remove(boardname);
+				if(drawArea!=null) drawArea.forget(whiteboard);
 				ClientManager clientManager = remoteManagers.get(boardname);
 				clientManager.shutdown();
 				log.info("Board deleted" + whiteboard.getName());
@@ -710,9 +1177,95 @@ public class WhiteboardApp {
 	public void createBoard() {
 		String name = peerport+":board"+Instant.now().toEpochMilli();
 		Whiteboard whiteboard = new Whiteboard(name,false);
+		if(crdtBoards) {
+			// the journal records operations in the order of the host, which
+			// a CRDT board does not have
+			whiteboard.makeCrdt(replicaId);
+		} else if(journalDirectory!=null) {
+			try {
+				whiteboard.setJournal(new BoardJournal(journalDirectory,getBoardIdAndData(name)));
+			} catch (IOException e) {
+				log.severe("could not journal board "+name+": "+e.getMessage());
+			}
+		}
 		addBoard(whiteboard,true);
 	}
 
+	/**
+	 * Set whether boards created from now on are CRDT boards, which peers
+	 * change without waiting for the host, rather than boards whose updates
+	 * the host puts in order.
+	 * @param crdtBoards
+	 */
+	public void setCrdtBoards(boolean crdtBoards) {
+		this.crdtBoards=crdtBoards;
+	}
+
+	/**
+	 * Set how many bytes of board images to cache, so that switching back to
+	 * a board does not draw it from the start.
+	 * @param rasterCacheBytes
+	 */
+	public void setRasterCacheBytes(long rasterCacheBytes) {
+		this.rasterCacheBytes=rasterCacheBytes;
+		if(drawArea!=null) drawArea.setCacheBudget(rasterCacheBytes);
+	}
+
+	/**
+	 * Rebuild the boards that were journalled, with names for this peer.
+	 */
+	public void restoreBoards() {
+		if(journalDirectory==null) return;
+		File[] files = journalDirectory.listFiles((dir,file)->file.endsWith(".journal"));
+		if(files==null) return;
+		for(File file : files) {
+			String boardId = file.getName().substring(0,file.getName().length()-".journal".length());
+			Whiteboard whiteboard = new Whiteboard(peerport+":"+boardId,false);
+			try {
+				BoardJournal journal = new BoardJournal(journalDirectory,boardId);
+				journal.restore(whiteboard);
+				whiteboard.setJournal(journal);
+				addBoard(whiteboard,false);
+				log.info("Restored board "+whiteboard.getNameAndVersion());
+			} catch (IOException e) {
+				log.severe("could not restore board "+boardId+": "+e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * A stroke has been started on the draw area. If the selected board has
+	 * other peers, the stroke is streamed to them while it is drawn.
+	 * @param color
+	 * @param x
+	 * @param y
+	 */
+	public void strokeStarted(Color color, int x, int y) {
+		if(selectedBoard!=null && (selectedBoard.isShared() || selectedBoard.isRemote())) {
+			liveStroke=new StrokeStream(selectedBoard,color,x,y);
+		}
+	}
+
+	/**
+	 * A point has been added to the stroke being drawn.
+	 * @param x
+	 * @param y
+	 */
+	public void strokePoint(int x, int y) {
+		if(liveStroke!=null) liveStroke.addPoint(x,y);
+	}
+
+	/**
+	 * The stroke being drawn has ended, and if it is a path then
+	 * {@link #pathCreatedLocally(WhiteboardPath)} is called next.
+	 */
+	public void strokeEnded() {
+		if(liveStroke!=null) {
+			liveStroke.end();
+			liveStroke=null;
+		}
+	}
+
 	/**
 	 * Add a path to the selected board. The path has already
 	 * been drawn on the draw area; so if it can't be accepted then
@@ -722,12 +1275,18 @@ public class WhiteboardApp {
 	public void pathCreatedLocally(WhiteboardPath currentPath) {
 		if(selectedBoard!=null) {
 			System.out.println("----------------Draw-------------------");
+			WhiteboardPath simplified = pathSimplifier.simplify(currentPath);
+			if(simplified!=currentPath) {
+				log.info("path simplified from "+currentPath.length()+" to "+
+						simplified.length()+" points");
+				currentPath=simplified;
+			}
 			if(!selectedBoard.addPath(currentPath,selectedBoard.getVersion())) {
 				// some other peer modified the board in between
 				drawSelectedWhiteboard(); // just redraw the screen without the path
 			} else {
 				// was accepted locally, so do remote stuff if needed
-
+				renderer.drawChanges(selectedBoard);
 			}
 		} else {
 			log.severe("path created without a selected board: "+currentPath);
@@ -745,7 +1304,7 @@ public class WhiteboardApp {
 			} else {
 				// was accepted locally, so do remote stuff if needed
 
-				drawSelectedWhiteboard();
+				renderer.drawChanges(selectedBoard);
 			}
 		} else {
 			log.severe("cleared without a selected board");
@@ -761,7 +1320,7 @@ public class WhiteboardApp {
 				// some other peer modified the board in between
 				drawSelectedWhiteboard();
 			} else {
-				drawSelectedWhiteboard();
+				renderer.drawChanges(selectedBoard);
 			}
 		} else {
 			log.severe("undo without a selected board");
@@ -773,7 +1332,11 @@ public class WhiteboardApp {
 	 */
 	public void selectedABoard() {
 
-		drawSelectedWhiteboard();
+		if(selectedBoard!=null) {
+			renderer.show(selectedBoard);
+		} else {
+			renderer.clear();
+		}
 		log.info("selected board: "+selectedBoard.getName());
 		/**
 		 * Upon selecting the board in the gui,
@@ -810,6 +1373,7 @@ public class WhiteboardApp {
 			deleteBoard(board.getName());
 		});
 		peerManager.shutdown();
+		if(renderer!=null) renderer.shutdown();
 	}
 
 
@@ -825,11 +1389,8 @@ public class WhiteboardApp {
 	 * Redraw the screen with the selected board
 	 */
 	public void drawSelectedWhiteboard() {
-		drawArea.clear();
-		if(selectedBoard!=null) {
-//			System.out.println("----------------Draw-------------------");
-			selectedBoard.draw(drawArea);
-		}
+		// a null board only clears the draw area
+		renderer.redraw(selectedBoard);
 	}
 
 	/**
@@ -844,6 +1405,9 @@ public class WhiteboardApp {
 		content.setLayout(new BorderLayout());
 		// create draw area
 		drawArea = new DrawArea(this);
+		drawArea.setSmoothing(pathSmoothing);
+		drawArea.setCacheBudget(rasterCacheBytes);
+		renderer = drawArea.getRenderer();
 
 		// add to content pane
 		content.add(drawArea, BorderLayout.CENTER);
@@ -1018,7 +1582,7 @@ public class WhiteboardApp {
 					if(whiteboards.size()>0) {
 						boardComboBox.setSelectedIndex(0);
 					} else {
-						drawArea.clear();
+						renderer.clear();
 						createBoard();
 					}
 				}
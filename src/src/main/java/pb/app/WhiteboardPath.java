@@ -2,12 +2,18 @@ package pb.app;
 
 import java.awt.Color;
 import java.awt.Graphics2D;
-import java.util.ArrayList;
+import java.awt.Rectangle;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 /**
  * Class for maintaining a path.
  * You probably don't need to modify this class.
+ * <br/>
+ * The points are kept packed in a pair of growable int arrays, one for the
+ * x coordinates and one for the y coordinates, rather than as a list of
+ * {@link WhiteboardPoint} objects, so a point costs 8 bytes of heap and the
+ * whole path can be handed to {@link Graphics2D#drawPolyline} as it is.
  * @author aaron
  *
  */
@@ -15,9 +21,16 @@ public class WhiteboardPath {
 	private static Logger log = Logger.getLogger(WhiteboardPath.class.getName());
 	
 	/**
-	 * List of points in the path.
+	 * Coordinates of the points in the path; only the first
+	 * {@link #size} entries are in use.
 	 */
-	ArrayList<WhiteboardPoint> points;
+	private int[] xs;
+	private int[] ys;
+	
+	/**
+	 * Number of points in the path.
+	 */
+	private int size;
 	
 	/**
 	 * Color of the path.
@@ -30,7 +43,19 @@ public class WhiteboardPath {
 	 */
 	public WhiteboardPath(Color color) {
 		this.color=color;
-		points=new ArrayList<>();
+		xs=new int[16];
+		ys=new int[16];
+	}
+	
+	/**
+	 * Create a new path with a color and room for a number of points.
+	 * @param color
+	 * @param capacity number of points expected
+	 */
+	WhiteboardPath(Color color, int capacity) {
+		this.color=color;
+		xs=new int[Math.max(1,capacity)];
+		ys=new int[xs.length];
 	}
 	
 	/**
@@ -40,12 +65,13 @@ public class WhiteboardPath {
 	 */
 	public WhiteboardPath(String data) {
 		String[] parts = data.split(">");
-		points=new ArrayList<>();
+		xs=new int[Math.max(1,parts.length-1)];
+		ys=new int[xs.length];
 		this.color=Color.black;
 		if(parts.length>=1) {
 			color=parseColor(parts[0]);
 			for(int i=1;i<parts.length;i++) {
-				points.add(new WhiteboardPoint(parts[i]));
+				addPoint(parts[i]);
 			}
 		}
 	}
@@ -56,7 +82,33 @@ public class WhiteboardPath {
 	 * @param y
 	 */
 	public void addPoint(int x, int y) {
-		points.add(new WhiteboardPoint(x,y));
+		if(size==xs.length) {
+			xs=Arrays.copyOf(xs,2*size);
+			ys=Arrays.copyOf(ys,2*size);
+		}
+		xs[size]=x;
+		ys[size]=y;
+		size++;
+	}
+	
+	/**
+	 * Add a point given as a string with format x,y, as in
+	 * {@link WhiteboardPoint#WhiteboardPoint(String)}.
+	 * @param data
+	 */
+	private void addPoint(String data) {
+		int comma=data.indexOf(',');
+		if(comma!=-1 && comma==data.lastIndexOf(',')) {
+			try {
+				addPoint(Integer.parseInt(data,0,comma,10),
+						Integer.parseInt(data,comma+1,data.length(),10));
+				return;
+			} catch (NumberFormatException e) {
+				
+			}
+		}
+		log.severe("invalid point ["+data+"] defaulting to (0,0)");
+		addPoint(0,0);
 	}
 	
 	/**
@@ -64,7 +116,75 @@ public class WhiteboardPath {
 	 * @return the length of the path
 	 */
 	public int length() {
-		return points.size();
+		return size;
+	}
+	
+	/**
+	 * 
+	 * @return the color of the path
+	 */
+	public Color getColor() {
+		return color;
+	}
+	
+	/**
+	 * 
+	 * @param i index of a point, less than {@link #length()}
+	 * @return the x coordinate of the point
+	 */
+	public int getX(int i) {
+		return xs[i];
+	}
+	
+	/**
+	 * 
+	 * @param i index of a point, less than {@link #length()}
+	 * @return the y coordinate of the point
+	 */
+	public int getY(int i) {
+		return ys[i];
+	}
+	
+	/**
+	 * 
+	 * @param i index of a point, less than {@link #length()}
+	 * @return a copy of the point
+	 */
+	public WhiteboardPoint getPoint(int i) {
+		return new WhiteboardPoint(xs[i],ys[i]);
+	}
+	
+	/**
+	 * The x coordinates of the points, for bulk access. The array is the
+	 * path's own and must not be modified; only the first {@link #length()}
+	 * entries are points, and it is replaced when the path grows.
+	 * @return the x coordinates
+	 */
+	public int[] getXs() {
+		return xs;
+	}
+	
+	/**
+	 * The y coordinates of the points, for bulk access, as for {@link #getXs()}.
+	 * @return the y coordinates
+	 */
+	public int[] getYs() {
+		return ys;
+	}
+	
+	/**
+	 * 
+	 * @return the smallest rectangle containing the points, or null if the
+	 * path has no points
+	 */
+	public Rectangle getBounds() {
+		if(size==0) return null;
+		int minX=xs[0], maxX=xs[0], minY=ys[0], maxY=ys[0];
+		for(int i=1;i<size;i++) {
+			if(xs[i]<minX) minX=xs[i]; else if(xs[i]>maxX) maxX=xs[i];
+			if(ys[i]<minY) minY=ys[i]; else if(ys[i]>maxY) maxY=ys[i];
+		}
+		return new Rectangle(minX,minY,maxX-minX,maxY-minY);
 	}
 	
 	/**
@@ -72,14 +192,11 @@ public class WhiteboardPath {
 	 * @param g2
 	 */
 	public void drawOnBoard(Graphics2D g2) {
-		if(points.size()<=1) {
+		if(size<=1) {
 			return;
 		}
 		g2.setPaint(color);
-		for(int i=1;i<points.size();i++) {
-			g2.drawLine(points.get(i-1).x, points.get(i-1).y,
-					points.get(i).x, points.get(i).y);
-		}
+		g2.drawPolyline(xs, ys, size);
 	}
 	
 	/**
@@ -88,11 +205,11 @@ public class WhiteboardPath {
 	 */
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
-		sb.append(colorString()+">");
-		for(int i=0;i<points.size();i++) {
-			sb.append(points.get(i).toString());
-			if(i!=points.size()-1) {
-				sb.append(">");
+		sb.append(colorString()).append('>');
+		for(int i=0;i<size;i++) {
+			sb.append(xs[i]).append(',').append(ys[i]);
+			if(i!=size-1) {
+				sb.append('>');
 			}
 		}
 		return sb.toString();
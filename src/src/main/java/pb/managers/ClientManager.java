@@ -3,20 +3,32 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Logger;
 
+import pb.managers.endpoint.ChannelConnection;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.IConnection;
+import pb.managers.endpoint.LoopbackConnection;
 import pb.managers.endpoint.ProtocolAlreadyRunning;
+import pb.managers.endpoint.SocketConnection;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
 import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventRequest;
 import pb.protocols.event.IEventProtocolHandler;
 import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
 import pb.protocols.session.ISessionProtocolHandler;
+import pb.protocols.session.ResumableSession;
 import pb.protocols.session.SessionProtocol;
+import pb.utils.Utils;
 
 /**
  * Manages the connection to the server and the client's state.
@@ -45,6 +57,17 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public static final String sessionStarted="SESSION_STARTED";
 	
+	/**
+	 * Emitted when the connection was lost and the client has reconnected and
+	 * resumed its session, including any events that were missed. The
+	 * endpoint is the one the session was started on, i.e. the one given when
+	 * {@link #sessionStarted} was emitted, which remains usable.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * </ul>
+	 */
+	public static final String sessionResumed="SESSION_RESUMED";
+	
 	/**
 	 * Emitted when a session has stopped and can longer be used.
 	 * <ul>
@@ -69,9 +92,21 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	private SessionProtocol sessionProtocol;
 	
 	/**
-	 * The socket for this client.
+	 * The connection for this client.
 	 */
-	private Socket socket;
+	private IConnection connection;
+	
+	/**
+	 * The path of the Unix domain socket to connect to, or null to
+	 * connect to the host and port.
+	 */
+	private String unixPath=null;
+	
+	/**
+	 * The name of the server in this JVM to connect to, or null to
+	 * connect to the host and port.
+	 */
+	private String localName=null;
 	
 	/**
 	 * The host to connect to.
@@ -86,7 +121,30 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	/**
 	 * When a connection fails, should we retry.
 	 */
-	private boolean shouldWeRetry=false;
+	private volatile boolean shouldWeRetry=false;
+	
+	/**
+	 * Number of failed connection attempts since a session was last
+	 * started or resumed.
+	 */
+	private volatile int failedAttempts=0;
+	
+	/**
+	 * The session with the server, kept across connections so that it
+	 * can be resumed if the connection is lost. Null if there is no session.
+	 */
+	private volatile ResumableSession session=null;
+	
+	/**
+	 * Set when the client manager has been asked to shutdown, so that
+	 * it stops trying to reconnect.
+	 */
+	private volatile boolean shuttingDown=false;
+	
+	/**
+	 * Events to carry in the session start request of a new session.
+	 */
+	private final List<EventRequest> initialEvents=new ArrayList<>();
 	
 	/**
 	 * Initialise the client manage with a host and port to connect to.
@@ -100,31 +158,90 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 		this.port=port;
 	}
 	
+	/**
+	 * Initialise the client manager with an address to connect to, either
+	 * "host:port", "unix:/path/to/socket" for a server on the same host
+	 * listening on a Unix domain socket, or "local:name" for a server in
+	 * the same JVM.
+	 * @param address
+	 * @throws UnknownHostException
+	 * @throws InterruptedException
+	 * @throws NumberFormatException if the address is none of these
+	 */
+	public ClientManager(String address) throws UnknownHostException, InterruptedException {
+		if(ChannelConnection.isUnixAddress(address)) {
+			this.unixPath=ChannelConnection.unixPath(address);
+			this.host=address;
+		} else if(LoopbackConnection.isLocalAddress(address)) {
+			this.localName=LoopbackConnection.localName(address);
+			this.host=address;
+		} else {
+			int colon=address.lastIndexOf(':');
+			if(colon<0) throw new NumberFormatException("no port in address: "+address);
+			this.host=address.substring(0,colon);
+			this.port=Integer.parseInt(address.substring(colon+1));
+		}
+	}
+	
+	/**
+	 * Send an event as part of starting the session, rather than after the
+	 * session has started, so that the reply can arrive in the same round trip
+	 * that starts the session. Handlers for the reply should be registered on
+	 * the endpoint given by {@link #sessionStarted}. Must be called before the
+	 * client manager is started, and the event is only sent for a new session,
+	 * not when a session is resumed.
+	 * @param eventName
+	 * @param eventData
+	 * @return this client manager
+	 */
+	public ClientManager sendOnStart(String eventName, String eventData) {
+		synchronized(initialEvents) {
+			initialEvents.add(new EventRequest(eventName,eventData));
+		}
+		return this;
+	}
+	
 	@Override
 	public void shutdown() {
+		shuttingDown=true;
 		sessionProtocol.stopSession();
 	}
 	
 	@Override
 	public void run() {
-		int retries=10;
-		while(retries-- > 0) {
-			if(attemptToConnect(host,port)) {
-				// the connection ended in error, so let's just
-				// try to get it back up, transparently to the
-				// higher layer
-				try {
-					Thread.sleep(5000); // short pause before retrying
-				} catch (InterruptedException e) {
-					continue;
-				} 
-			} else {
-				// connection ended cleanly, so we can terminate this manager
+		while(attemptToConnect(host,port) && !shuttingDown) {
+			// the connection ended in error, so let's just
+			// try to get it back up, transparently to the
+			// higher layer
+			if(++failedAttempts > Utils.connectRetries) {
+				log.severe("no more retries, giving up");
+				ResumableSession lost=session;
+				session=null;
+				if(lost!=null) localEmit(sessionError,lost.getEndpoint());
 				return;
 			}
+			long delay=retryDelay(failedAttempts);
+			log.info("retrying connection in "+delay+"ms");
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				continue;
+			} 
 		}
-		log.severe("no more retries, giving up");
-		
+		// connection ended cleanly, so we can terminate this manager
+	}
+	
+	/**
+	 * Exponential backoff with jitter: the delay doubles with every attempt, up
+	 * to a maximum, and a random amount of up to half of it is taken off so
+	 * that all of the clients of a server that restarts don't come back at once.
+	 * @param attempt number of attempts so far, starting at 1
+	 * @return delay in ms before the next attempt
+	 */
+	private long retryDelay(int attempt) {
+		long delay=Math.min(Utils.connectRetryMaxDelay,
+				(long)Utils.connectRetryBaseDelay << Math.min(attempt-1,20));
+		return delay/2+ThreadLocalRandom.current().nextLong(delay/2+1);
 	}
 	/**
 	 * Attempt to connect.
@@ -135,10 +252,19 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	private boolean attemptToConnect(final String host,final int port) {
 		shouldWeRetry=false; // may be set to true by another thread
 						     // if errors occur on the connection
-		log.info("attempting to connect to "+host+":"+port);
 		try {
-			socket=new Socket(InetAddress.getByName(host),port);
-			Endpoint endpoint = new Endpoint(socket,this);
+			if(unixPath!=null) {
+				log.info("attempting to connect to "+host);
+				connection=ChannelConnection.connect(unixPath);
+			} else if(localName!=null) {
+				log.info("attempting to connect to "+host);
+				connection=LoopbackConnection.connect(localName);
+			} else {
+				log.info("attempting to connect to "+host+":"+port);
+				connection=new SocketConnection(SocketChannel.open(
+						new InetSocketAddress(InetAddress.getByName(host),port)).socket());
+			}
+			Endpoint endpoint = new Endpoint(connection,this);
 			endpoint.start();
 
 			try {
@@ -153,9 +279,9 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 		} catch (IOException e1) {
 			shouldWeRetry=true;
 		} finally {
-			if(socket!=null)
+			if(connection!=null)
 				try {
-					socket.close();
+					connection.close();
 				} catch (IOException e) {
 					//ignore
 				}
@@ -171,6 +297,11 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	public void endpointReady(Endpoint endpoint) {
 		log.info("connection with server established");
 		sessionProtocol = new SessionProtocol(endpoint,this);
+		if(session!=null) sessionProtocol.resumeSession(session);
+		synchronized(initialEvents) {
+			sessionProtocol.startWith(Arrays.asList(KeepAliveProtocol.protocolName,
+					EventProtocol.protocolName),initialEvents);
+		}
 		try {
 			// we need to add it to the endpoint before starting it
 			endpoint.handleProtocol(sessionProtocol);
@@ -206,7 +337,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointDisconnectedAbruptly(Endpoint endpoint) {
 		log.severe("connection with server terminated abruptly");
-		localEmit(sessionError,endpoint);
+		sessionLost(endpoint);
 		endpoint.close();
 		shouldWeRetry=true;
 	}
@@ -218,7 +349,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointSentInvalidMessage(Endpoint endpoint) {
 		log.severe("server sent an invalid message");
-		localEmit(sessionError,endpoint);
+		sessionEnded(sessionError,endpoint);
 		endpoint.close();
 	}
 	
@@ -230,7 +361,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointTimedOut(Endpoint endpoint,Protocol protocol) {
 		log.severe("server has timed out");
-		localEmit(sessionError,endpoint);
+		sessionLost(endpoint);
 		endpoint.close();
 		shouldWeRetry=true;
 	}
@@ -242,7 +373,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void protocolViolation(Endpoint endpoint,Protocol protocol) {
 		log.severe("protocol with server has been violated: "+protocol.getProtocolName());
-		localEmit(sessionError,endpoint);
+		sessionEnded(sessionError,endpoint);
 		endpoint.close();
 	}
 
@@ -252,17 +383,96 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	@Override
 	public void sessionStarted(Endpoint endpoint) {
-		log.info("session has started with server");
+		failedAttempts=0;
+		ResumableSession resumed=sessionProtocol.getResumedSession();
+		if(resumed==null) {
+			if(session!=null) {
+				// the server no longer has our session, so it is gone and
+				// the higher layer will have to start over
+				log.warning("server could not resume the session, starting a new one");
+				localEmit(sessionError,session.getEndpoint());
+			}
+			log.info("session has started with server");
+			session=new ResumableSession(sessionProtocol.getSessionToken(),endpoint);
+		} else {
+			log.info("session has resumed with server");
+		}
 		
-		EventProtocol eventProtocol = new EventProtocol(endpoint,this);
+		EventProtocol eventProtocol = new EventProtocol(endpoint,this,session);
 		try {
 			endpoint.handleProtocol(eventProtocol);
 			eventProtocol.startAsServer();
 		} catch (ProtocolAlreadyRunning e) {
 			// hmmm... already requested by the client
 		}
+		// send anything the server missed while we were disconnected
+		if(!session.attach(endpoint,eventProtocol,sessionProtocol.getPeerLastSeq())) {
+			log.warning("server missed events that can no longer be sent, starting a new session");
+			restartSession(endpoint);
+			return;
+		}
 		
-		localEmit(sessionStarted,endpoint);
+		if(resumed==null) {
+			localEmit(sessionStarted,endpoint);
+			// a server that doesn't take events with the session start request
+			// gets them now instead
+			List<EventRequest> notDelivered=sessionProtocol.getInitialEvents();
+			long delivered=sessionProtocol.getInitialEventsDelivered();
+			for(int i=(int)delivered;i<notDelivered.size();i++) {
+				endpoint.emit(notDelivered.get(i).getEventName(),notDelivered.get(i).getEventData());
+			}
+		} else {
+			localEmit(sessionResumed,session.getEndpoint());
+		}
+	}
+	
+	/**
+	 * The connection has been lost. If we have a session then we will try to
+	 * resume it when we reconnect, so the higher layer need not know,
+	 * otherwise the session has ended in error.
+	 * @param endpoint
+	 */
+	private void sessionLost(Endpoint endpoint) {
+		ResumableSession current=session;
+		if(current==null) {
+			localEmit(sessionError,endpoint);
+		} else {
+			current.detach(endpoint);
+		}
+	}
+	
+	/**
+	 * Events of the session were lost, so it can not carry on. It is ended in
+	 * error, for the higher layer to start over, and a new session is started
+	 * on a new connection.
+	 * @param endpoint
+	 */
+	private void restartSession(Endpoint endpoint) {
+		sessionEnded(sessionError,endpoint);
+		shouldWeRetry=true;
+		endpoint.close();
+	}
+	
+	/**
+	 * We never received some of the events the server sent in the session.
+	 * @param endpoint
+	 * @param session
+	 */
+	@Override
+	public void eventsMissed(Endpoint endpoint, ResumableSession session) {
+		log.severe("events from the server were lost, starting a new session");
+		restartSession(endpoint);
+	}
+	
+	/**
+	 * The session has ended and won't be resumed.
+	 * @param event either {@link #sessionStopped} or {@link #sessionError}
+	 * @param endpoint
+	 */
+	private void sessionEnded(String event,Endpoint endpoint) {
+		ResumableSession ended=session;
+		session=null;
+		localEmit(event,ended!=null?ended.getEndpoint():endpoint);
 	}
 
 	/**
@@ -272,11 +482,19 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void sessionStopped(Endpoint endpoint) {
 		log.info("session has stopped with server");
-		localEmit(sessionStopped,endpoint);
+		sessionEnded(sessionStopped,endpoint);
 		endpoint.close(); // this will stop all the protocols as well
 	}
 	
-
+	/**
+	 * The server never resumes our sessions; we only ask it to resume them.
+	 */
+	@Override
+	public ResumableSession sessionResuming(Endpoint endpoint, String token, long lastSeq) {
+		// we only ever start sessions with the server, never accept them
+		return null;
+	}
+	
 	/**
 	 * The endpoint has requested a protocol to start. If the protocol
 	 * is allowed then the manager should tell the endpoint to handle it
@@ -2,50 +2,186 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+import pb.managers.endpoint.ChannelConnection;
+import pb.managers.endpoint.IConnection;
+import pb.managers.endpoint.LoopbackConnection;
+import pb.managers.endpoint.SocketConnection;
+import pb.utils.Utils;
+
 /**
- * Listen for connections on a given port number and pass them to the
- * {@link pb.managers.ServerManager} using
- * {@link pb.managers.ServerManager#acceptClient(Socket)}. Note that the
- * {@link pb.managers.ServerManager} is responsible for creating a thread for this
- * connection, else the IOThread will not accept any more connections until this
- * connection is finished.
- * 
+ * Listen for connections on a given port number, on a Unix domain socket or
+ * on a name in this JVM, and pass them to the {@link pb.managers.ServerManager} using
+ * {@link pb.managers.ServerManager#acceptClient(IConnection)}.
+ * <br/>
+ * A pool of acceptor threads all block in accept on the same server socket,
+ * so that a burst of connections (e.g. every client reconnecting at once) is
+ * drained from the kernel's backlog as fast as possible. Acceptors do nothing
+ * but accept; they hand each socket to this thread, which takes them off the
+ * handoff queue in batches and passes them to the server manager, which in
+ * turn starts an endpoint thread for each of them. This way an acceptor is
+ * never held up by thread creation in the server manager.
+ *
  * @see {@link pb.managers.ServerManager}
  * @author aaron
  *
  */
 public class IOThread extends Thread {
 	private static Logger log = Logger.getLogger(IOThread.class.getName());
-	private ServerSocket serverSocket=null;
 	private int port;
-	private ServerManager serverManager;
 	
+	/**
+	 * The channel listening on the port or on a Unix domain socket, and the
+	 * path of the socket when not listening on a port. Connections accepted
+	 * on it are socket channels, so that endpoints can use pooled buffers.
+	 */
+	private ServerSocketChannel serverChannel=null;
+	private String unixPath=null;
+	
+	/**
+	 * The listener for loopback connections, when listening on a
+	 * name in this JVM.
+	 */
+	private LoopbackConnection.Listener loopbackListener=null;
+	private ServerManager serverManager;
+
+	/**
+	 * Number of threads accepting connections on the server socket.
+	 */
+	private int numAcceptors;
+
+	/**
+	 * The acceptor threads, so we can join with them when shutting down.
+	 */
+	private List<Thread> acceptors;
+
+	/**
+	 * Sockets that have been accepted but not yet handed to the
+	 * server manager.
+	 */
+	private LinkedBlockingQueue<IConnection> accepted;
+
+	/**
+	 * Total number of connections accepted, and the number accepted
+	 * since the last throughput report.
+	 */
+	private final AtomicLong totalAccepted = new AtomicLong();
+	private final AtomicLong intervalAccepted = new AtomicLong();
+
+	/**
+	 * Time of the last throughput report.
+	 */
+	private volatile long lastReportTime;
+
 	/**
 	 * Emitted when the io thread has started. The argument
-	 * provides the io thread's Internet address in the 
+	 * provides the io thread's Internet address in the
 	 * form "host:port"
 	 * <ol>
 	 * <li>{@code args[0] instanceof String}</li>
 	 * </ol>
 	 */
 	public static final String ioThread = "IO_THREAD";
-	
+
+	/**
+	 * Emitted periodically while connections are being accepted. The argument
+	 * gives the accept throughput over the last interval in the form
+	 * "connections/second:totalConnections"
+	 * <ol>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ol>
+	 */
+	public static final String ioThreadStats = "IO_THREAD_STATS";
+
 	/**
 	 * Initialise the IOThread with a port number to listen on and reference
-	 * to the {@link pb.managers.ServerManager}.
+	 * to the {@link pb.managers.ServerManager}, using the default backlog
+	 * and number of acceptors.
 	 * @param port to listen on
 	 * @param serverManager to send connections to
 	 * @throws IOException whenever the server socket can't be created
 	 */
 	public IOThread(int port, ServerManager serverManager) throws IOException{
-		serverSocket = new ServerSocket(port); // let's throw this since its potentially unrecoverable
+		this(port,serverManager,Utils.acceptorThreads,Utils.acceptBacklog);
+	}
+
+	/**
+	 * Initialise the IOThread with a port number to listen on and reference
+	 * to the {@link pb.managers.ServerManager}.
+	 * @param port to listen on
+	 * @param serverManager to send connections to
+	 * @param numAcceptors number of threads to accept connections with
+	 * @param backlog maximum length of the kernel's queue of pending connections
+	 * @throws IOException whenever the server socket can't be created
+	 */
+	public IOThread(int port, ServerManager serverManager, int numAcceptors,
+			int backlog) throws IOException{
+		serverChannel = ServerSocketChannel.open(); // let's throw this since its potentially unrecoverable
+		serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR,true);
+		serverChannel.bind(new InetSocketAddress(port),backlog);
 		this.port=port;
 		this.serverManager=serverManager;
+		this.numAcceptors=Math.max(1,numAcceptors);
+		acceptors=new ArrayList<>();
+		accepted=new LinkedBlockingQueue<>();
+		setName("IOThread");
+		start();
+	}
+	
+	/**
+	 * Initialise the IOThread with the path of a Unix domain socket to listen
+	 * on and reference to the {@link pb.managers.ServerManager}. A socket
+	 * file left behind by a previous server is removed.
+	 * @param unixPath of the socket to listen on
+	 * @param serverManager to send connections to
+	 * @param numAcceptors number of threads to accept connections with
+	 * @param backlog maximum length of the kernel's queue of pending connections
+	 * @throws IOException whenever the socket can't be created
+	 */
+	public IOThread(String unixPath, ServerManager serverManager, int numAcceptors,
+			int backlog) throws IOException{
+		Files.deleteIfExists(Paths.get(unixPath));
+		serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		serverChannel.bind(UnixDomainSocketAddress.of(unixPath),backlog);
+		this.unixPath=unixPath;
+		this.serverManager=serverManager;
+		this.numAcceptors=Math.max(1,numAcceptors);
+		acceptors=new ArrayList<>();
+		accepted=new LinkedBlockingQueue<>();
+		setName("IOThread");
+		start();
+	}
+
+	/**
+	 * Initialise the IOThread with a listener for loopback connections
+	 * from within this JVM and reference to the {@link pb.managers.ServerManager}.
+	 * @param loopbackListener to accept connections from
+	 * @param serverManager to send connections to
+	 * @param numAcceptors number of threads to accept connections with
+	 */
+	public IOThread(LoopbackConnection.Listener loopbackListener, ServerManager serverManager,
+			int numAcceptors) {
+		this.loopbackListener=loopbackListener;
+		this.serverManager=serverManager;
+		this.numAcceptors=Math.max(1,numAcceptors);
+		acceptors=new ArrayList<>();
+		accepted=new LinkedBlockingQueue<>();
 		setName("IOThread");
 		start();
 	}
@@ -54,42 +190,161 @@ public class IOThread extends Thread {
 	 * Close the server socket and make sure the thread terminates.
 	 */
 	public void shutDown() {
-		if(serverSocket!=null)
+		closeServerSocket();
+		interrupt();
+	}
+	
+	private void closeServerSocket() {
+		try {
+			if(serverChannel!=null) serverChannel.close();
+			if(loopbackListener!=null) loopbackListener.close();
+		} catch (IOException e) {
+			log.warning("exception closing server socket: "+e.getMessage());
+		}
+	}
+	
+	private boolean isClosed() {
+		if(loopbackListener!=null) return loopbackListener.isClosed();
+		return !serverChannel.isOpen();
+	}
+	
+	/**
+	 * 
+	 * @return the address connections are accepted on, "port", "unix:/path"
+	 * or "local:name"
+	 */
+	private String getAddress() {
+		if(loopbackListener!=null) return Utils.localScheme+loopbackListener.getName();
+		return unixPath!=null ? Utils.unixScheme+unixPath : Integer.toString(port);
+	}
+	
+	/**
+	 * Block until the next connection is accepted.
+	 * @return the connection
+	 * @throws IOException
+	 */
+	private IConnection accept() throws IOException {
+		if(loopbackListener!=null) {
+			return loopbackListener.accept();
+		}
+		if(unixPath!=null) {
+			return new ChannelConnection(serverChannel.accept(),unixPath);
+		}
+		Socket clientSocket = serverChannel.accept().socket();
+		clientSocket.setTcpNoDelay(true);
+		return new SocketConnection(clientSocket);
+	}
+
+	/**
+	 *
+	 * @return the total number of connections accepted so far
+	 */
+	public long getTotalAccepted() {
+		return totalAccepted.get();
+	}
+
+	/**
+	 * Accept connections until the server socket is closed, putting
+	 * them on the handoff queue.
+	 */
+	private void acceptConnections() {
+		while(!isClosed()){
 			try {
-				serverSocket.close();
+				accepted.add(accept());
+				totalAccepted.incrementAndGet();
+				intervalAccepted.incrementAndGet();
 			} catch (IOException e) {
-				log.warning("exception closing server socket: "+e.getMessage());
+				if(!isClosed())
+					log.warning("exception accepting connection: "+e.getMessage());
 			}
-		interrupt();
+		}
 	}
-	
+
+	/**
+	 * Report accept throughput since the last report, if anything was accepted.
+	 */
+	private void reportThroughput() {
+		long now = Instant.now().toEpochMilli();
+		long count = intervalAccepted.getAndSet(0);
+		long elapsed = now-lastReportTime;
+		lastReportTime = now;
+		if(count==0 || elapsed<=0) return;
+		long perSecond = count*1000/elapsed;
+		log.info("accepted "+count+" connections in "+elapsed+"ms ("+perSecond+
+				" connections/s, "+totalAccepted.get()+" in total)");
+		serverManager.localEmit(ioThreadStats,perSecond+":"+totalAccepted.get());
+	}
+
 	/**
-	 * Listen for connections and pass them to the ServerManager.
+	 * Start the acceptors and pass the connections they accept to the ServerManager.
 	 */
 	@Override
 	public void run() {
-		log.info("listening for connections on port "+port);
-		try {
+		log.info("listening for connections on "+getAddress()+" with "+numAcceptors+" acceptors");
+		if(unixPath!=null || loopbackListener!=null) {
+			serverManager.emit(ioThread,getAddress());
+		} else try {
 			serverManager.emit(ioThread,InetAddress.getLocalHost().getHostAddress()+":"+port);
 		} catch (UnknownHostException e1) {
 			log.severe("Could not get address of local host, continuing anyway, assuming 127.0.0.1");
 			serverManager.emit(ioThread,"127.0.0.1:"+port);
 		}
-		while(!isInterrupted() && !serverSocket.isClosed()){
-			Socket clientSocket;
+		for(int i=0;i<numAcceptors;i++) {
+			Thread acceptor = new Thread(()->{acceptConnections();});
+			acceptor.setName("IOThread-acceptor-"+i);
+			acceptors.add(acceptor);
+			acceptor.start();
+		}
+		lastReportTime = Instant.now().toEpochMilli();
+		List<IConnection> batch = new ArrayList<>(Utils.acceptBatchSize);
+		while(!isInterrupted() && !isClosed()){
 			try {
-				clientSocket = serverSocket.accept();
-				log.info("Received connection from "+clientSocket.getInetAddress());
-				serverManager.acceptClient(clientSocket);
-			} catch (IOException e) {
-				log.warning("exception accepting connection: "+e.getMessage());
-			} 
+				IConnection connection = accepted.poll(Utils.acceptStatsInterval,TimeUnit.MILLISECONDS);
+				if(connection!=null) {
+					batch.add(connection);
+					accepted.drainTo(batch,Utils.acceptBatchSize-1);
+					handOff(batch);
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+			if(Instant.now().toEpochMilli()-lastReportTime>=Utils.acceptStatsInterval)
+				reportThroughput();
 		}
 		log.info("IOThread terminating");
-		try {
-			serverSocket.close();
-		} catch (IOException e) {
-			log.warning("exception closing server socket: "+e.getMessage());
+		closeServerSocket();
+		interrupted(); // clear the flag, else joining would return straight away
+		acceptors.forEach((acceptor)->{
+			try {
+				acceptor.join();
+			} catch (InterruptedException e) {
+				log.warning("could not join with acceptor "+acceptor.getName());
+			}
+		});
+		// anything accepted before the socket closed still goes to the
+		// server manager, which decides what to do with it during shutdown
+		accepted.drainTo(batch);
+		handOff(batch);
+		reportThroughput();
+		if(unixPath!=null) {
+			try {
+				Files.deleteIfExists(Paths.get(unixPath));
+			} catch (IOException e) {
+				log.warning("could not remove socket file: "+e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Pass a batch of accepted connections to the server manager and
+	 * empty the batch.
+	 * @param batch
+	 */
+	private void handOff(List<IConnection> batch) {
+		for(IConnection connection : batch) {
+			log.info("Received connection from "+connection.getRemoteId());
+			serverManager.acceptClient(connection);
 		}
+		batch.clear();
 	}
 }
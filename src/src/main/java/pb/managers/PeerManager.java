@@ -5,7 +5,9 @@ import java.util.HashSet;
 import java.util.Set;
 import java.util.logging.Logger;
 
+import pb.managers.endpoint.ChannelConnection;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.LoopbackConnection;
 
 
 
@@ -32,6 +34,19 @@ public class PeerManager extends Manager {
 	 */
 	public static final String peerStarted = "PEER_STARTED";
 	
+	/**
+	 * Emitted when a session that lost its connection has been resumed over
+	 * a new one. The endpoint is the one given when {@link #peerStarted} was
+	 * emitted for the session, which remains usable.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * <li>{@code args[1] instanceof ServerManager}</li>
+	 * </ul>
+	 * Note that this event is also emitted on new client managers and
+	 * in this case {@code args[1] instanceof ClientManager}
+	 */
+	public static final String peerResumed = "PEER_RESUMED";
+	
 	/**
 	 * Emitted when a session on the server manager
 	 * has stopped and can longer be used.
@@ -74,9 +89,9 @@ public class PeerManager extends Manager {
 	private ServerManager serverManager;
 	
 	/**
-	 * My server port
+	 * My server address, a port, "unix:/path/to/socket" or "local:name"
 	 */
-	private int myServerPort;
+	private String myServerAddress;
 	
 	/**
 	 * Initialize with a port for the server manager for this peer
@@ -84,8 +99,17 @@ public class PeerManager extends Manager {
 	 * @param myServerPort
 	 */
 	public PeerManager(int myServerPort) {
+		this(Integer.toString(myServerPort));
+	}
+	
+	/**
+	 * Initialize with an address for the server manager for this peer
+	 * to use, either a port, "unix:/path/to/socket" or "local:name".
+	 * @param myServerAddress
+	 */
+	public PeerManager(String myServerAddress) {
 		clientManagers = new HashSet<>();
-		this.myServerPort=myServerPort;
+		this.myServerAddress=myServerAddress;
 	}
 	
 	/**
@@ -106,11 +130,33 @@ public class PeerManager extends Manager {
 	 * @return the client manager for the new connection
 	 */
 	public ClientManager connect(int serverPort,String host) throws UnknownHostException, InterruptedException {
-		ClientManager clientManager = new ClientManager(host,serverPort);
+		if(ChannelConnection.isUnixAddress(host) || LoopbackConnection.isLocalAddress(host))
+			return connect(host);
+		return connect(new ClientManager(host,serverPort));
+	}
+	
+	/**
+	 * Connect to either a server or another peer. The client manager
+	 * needs to be started after it is returned.
+	 * @param address of the server/peer to connect to, either "host:port",
+	 * "unix:/path/to/socket" for one on the same host or "local:name" for
+	 * one in the same JVM
+	 * @throws InterruptedException 
+	 * @throws UnknownHostException 
+	 * @return the client manager for the new connection
+	 */
+	public ClientManager connect(String address) throws UnknownHostException, InterruptedException {
+		return connect(new ClientManager(address));
+	}
+	
+	private ClientManager connect(ClientManager clientManager) {
 		clientManagers.add(clientManager);
 		clientManager.on(ClientManager.sessionStarted, (args)->{
 			Endpoint client = (Endpoint)args[0];
 			clientManager.emit(peerStarted, client,clientManager);
+		}).on(ClientManager.sessionResumed, (args)->{
+			Endpoint client = (Endpoint)args[0];
+			clientManager.localEmit(peerResumed, client,clientManager);
 		}).on(ClientManager.sessionStopped, (args)->{
 			Endpoint client = (Endpoint)args[0];
 			clientManager.emit(peerStopped, client,clientManager);
@@ -138,11 +184,14 @@ public class PeerManager extends Manager {
 	@Override
 	public void run() {
 		// initialize a server manager for other peers to connect to
-		serverManager=new ServerManager(myServerPort);
+		serverManager=new ServerManager(myServerAddress);
 		// setup the callbacks for when another peer connects to this peer
 		serverManager.on(ServerManager.sessionStarted, (args)->{
 			Endpoint client = (Endpoint)args[0];
 			localEmit(peerStarted,client,serverManager);
+		}).on(ServerManager.sessionResumed, (args)->{
+			Endpoint client = (Endpoint)args[0];
+			localEmit(peerResumed,client,serverManager);
 		}).on(ServerManager.sessionStopped, (args)->{
 			Endpoint client = (Endpoint)args[0];
 			localEmit(peerStopped,client,serverManager);
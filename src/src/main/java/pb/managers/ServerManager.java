@@ -2,20 +2,33 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.time.Instant;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import pb.managers.endpoint.ChannelConnection;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.IConnection;
+import pb.managers.endpoint.LoopbackConnection;
 import pb.managers.endpoint.ProtocolAlreadyRunning;
+import pb.managers.endpoint.SocketConnection;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
 import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventRequest;
 import pb.protocols.event.IEventProtocolHandler;
 import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
 import pb.protocols.session.ISessionProtocolHandler;
+import pb.protocols.session.ResumableSession;
 import pb.protocols.session.SessionProtocol;
+import pb.utils.Utils;
 
 
 /**
@@ -46,6 +59,16 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public static final String sessionStarted="SESSION_STARTED";
 	
+	/**
+	 * Emitted when a client has reconnected and resumed a session that had
+	 * lost its connection. The endpoint is the one the session was started on,
+	 * i.e. the one given when {@link #sessionStarted} was emitted.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * </ul>
+	 */
+	public static final String sessionResumed="SESSION_RESUMED";
+	
 	/**
 	 * Emitted when a session has stopped and can longer be used.
 	 * <ul>
@@ -106,9 +129,19 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	private final Set<Endpoint> liveEndpoints;
 	
 	/**
-	 * The port for this server.
+	 * Sessions that can be resumed, by session token, and the session carried
+	 * by each endpoint. A session whose connection is lost stays here for
+	 * {@link pb.utils.Utils#sessionResumeTimeout} ms so that the client can
+	 * resume it. Both are guarded by synchronizing on sessions.
+	 */
+	private final Map<String,ResumableSession> sessions;
+	private final Map<Endpoint,ResumableSession> endpointSessions;
+	
+	/**
+	 * The address for this server: a port, "unix:/path/to/socket" or
+	 * "local:name".
 	 */
-	private final int port;
+	private final String address;
 	
 	/**
 	 * Should we force shutdown, i.e force endpoints to close.
@@ -120,19 +153,33 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private volatile boolean vaderShutdown=false;
 	
+	/**
+	 * Time that a shutdown was requested, used to report how long
+	 * each phase of the shutdown took.
+	 */
+	private volatile long shutdownRequested=0;
+	
 	/**
 	 * Password if given
 	 */
 	private String password=null;
 	
+	/**
+	 * Number of threads for the io thread to accept connections with.
+	 */
+	private int numAcceptors=Utils.acceptorThreads;
+	
+	/**
+	 * Length of the queue of pending connections on the server socket.
+	 */
+	private int acceptBacklog=Utils.acceptBacklog;
+	
 	/**
 	 * Initialise the ServerManager with a port number for the io thread to listen on.
 	 * @param port to use when creating the io thread
 	 */
 	public ServerManager(int port) {
-		this.port=port;
-		liveEndpoints=new HashSet<>();
-		setName("ServerManager"); // name the thread, urgh simple log can't print it :-(
+		this(Integer.toString(port),null);
 	}
 	
 	/**
@@ -142,12 +189,53 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * @param password to use by admin clients
 	 */
 	public ServerManager(int port,String password) {
-		this.port=port;
+		this(Integer.toString(port),password);
+	}
+	
+	/**
+	 * Initialise the ServerManager with an address for the io thread to listen
+	 * on, either a port number, "unix:/path/to/socket" for a Unix domain
+	 * socket, which peers on the same host can connect to without going
+	 * through the TCP stack, or "local:name" for a name that peers in the
+	 * same JVM can connect to without going through the kernel at all.
+	 * @param address to use when creating the io thread
+	 * @throws NumberFormatException if the address is none of these
+	 */
+	public ServerManager(String address) {
+		this(address,null);
+	}
+	
+	/**
+	 * Initialise the ServerManager with an address for the io thread to listen
+	 * on, either a port number, "unix:/path/to/socket" or "local:name",
+	 * and a password.
+	 * @param address to use when creating the io thread
+	 * @param password to use by admin clients
+	 * @throws NumberFormatException if the address is none of these
+	 */
+	public ServerManager(String address,String password) {
+		if(!ChannelConnection.isUnixAddress(address) &&
+				!LoopbackConnection.isLocalAddress(address))
+			Integer.parseInt(address);
+		this.address=address;
 		liveEndpoints=new HashSet<>();
+		sessions=new HashMap<>();
+		endpointSessions=new HashMap<>();
 		this.password = password;
 		setName("ServerManager"); // name the thread, urgh simple log can't print it :-(
 	}
 	
+	/**
+	 * Set how connections are accepted. Must be called before the server
+	 * manager is started.
+	 * @param numAcceptors number of threads accepting connections
+	 * @param acceptBacklog length of the queue of pending connections
+	 */
+	public void setAcceptOptions(int numAcceptors,int acceptBacklog) {
+		this.numAcceptors=numAcceptors;
+		this.acceptBacklog=acceptBacklog;
+	}
+	
 	/**
 	 * Usually a single shutdown method would suffice, but for servers
 	 * it is convenient to have different methods, depending on how the
@@ -158,20 +246,29 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	
 	public void shutdown() {
 		log.info("server shutdown called");
+		if(shutdownRequested==0) shutdownRequested=Instant.now().toEpochMilli();
 		// this will not force existing clients to finish their sessions
 		ioThread.shutDown();
 	}
 	
 	public void forceShutdown() { // Skywalker style :-)
 		log.warning("server force shutdown called");
+		if(shutdownRequested==0) shutdownRequested=Instant.now().toEpochMilli();
 		forceShutdown=true; // this will send session stops to all the clients
 		ioThread.shutDown();
+		synchronized(liveEndpoints) {
+			liveEndpoints.notifyAll(); // escalate a graceful shutdown that is waiting
+		}
 	}
 	
 	public void vaderShutdown() { // Darkside style :-]
 		log.warning("server vader shutdown called");
+		if(shutdownRequested==0) shutdownRequested=Instant.now().toEpochMilli();
 		vaderShutdown=true; // this will just close all of the endpoints abruptly
 		ioThread.shutDown();
+		synchronized(liveEndpoints) {
+			liveEndpoints.notifyAll(); // escalate a graceful shutdown that is waiting
+		}
 	}
 	
 	/**
@@ -190,7 +287,15 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		// when the IO thread terminates, and all endpoints have terminated,
 		// then the server will terminate
 		try {
-			ioThread = new IOThread(port,this);
+			if(ChannelConnection.isUnixAddress(address)) {
+				ioThread = new IOThread(ChannelConnection.unixPath(address),this,
+						numAcceptors,acceptBacklog);
+			} else if(LoopbackConnection.isLocalAddress(address)) {
+				ioThread = new IOThread(LoopbackConnection.listen(
+						LoopbackConnection.localName(address)),this,numAcceptors);
+			} else {
+				ioThread = new IOThread(Integer.parseInt(address),this,numAcceptors,acceptBacklog);
+			}
 		} catch (IOException e1) {
 			log.severe("could not start the io thread");
 			return;
@@ -204,61 +309,129 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 			ioThread.shutDown();
 		}
 		
+		long ioJoined=Instant.now().toEpochMilli();
 		log.info("io thread has joined");
 		
 		// At this point, there still may be some endpoints that have not
 		// terminated, and so the JVM will remain running until they do.
 		// However no new endpoints can be created.
 		
-		// let's create our own list of endpoints that exist at this point
-		HashSet<Endpoint> currentEndpoints = new HashSet<>();
+		// if we want to tell clients to end session, or just close them
+		stopLiveEndpoints();
+		long broadcastDone=Instant.now().toEpochMilli();
+		
+		// let's wait for the remaining clients if we can, waking up whenever
+		// one of them closes rather than polling; a graceful shutdown waits
+		// for as long as the clients need (unless it is escalated to a forced
+		// shutdown), otherwise we only wait until the drain deadline and then
+		// close whatever is left
+		if(numLiveEndpoints()>0)
+			log.warning("waiting for "+numLiveEndpoints()+" endpoints to finish");
+		try {
+			if(!forceShutdown && !vaderShutdown && !awaitLiveEndpoints(Long.MAX_VALUE)) {
+				log.warning("graceful shutdown escalated");
+				stopLiveEndpoints();
+			}
+			if(!awaitLiveEndpoints(Instant.now().toEpochMilli()+Utils.shutdownDrainTimeout)) {
+				log.severe("drain deadline passed, closing "+numLiveEndpoints()+
+						" unfinished endpoints");
+				closeLiveEndpoints();
+			}
+		} catch (InterruptedException e) {
+			if(numLiveEndpoints()>0) {
+				log.severe("terminating server with "+numLiveEndpoints()+
+						" still unfinished");
+			}
+		}
+		long drained=Instant.now().toEpochMilli();
+		if(shutdownRequested>0) {
+			log.info("shutdown took "+(drained-shutdownRequested)+"ms: stopping io thread "+
+					(ioJoined-shutdownRequested)+"ms, session stop broadcast "+
+					(broadcastDone-ioJoined)+"ms, draining endpoints "+(drained-broadcastDone)+"ms");
+		}
+		log.info("terminated");
+	}
+	
+	/**
+	 * Depending on how we are shutting down, either ask the live endpoints to
+	 * stop their sessions or close them outright. Nothing is done for
+	 * a graceful shutdown.
+	 */
+	private void stopLiveEndpoints() {
+		// it is indeed possible that both may be set true
+		if(vaderShutdown) {
+			// in this case we just close the endpoints, which will likely cause
+			// abrupt disconnection
+			closeLiveEndpoints();
+		} else if(forceShutdown) {
+			HashSet<Endpoint> currentEndpoints;
+			synchronized(liveEndpoints) {
+				currentEndpoints = new HashSet<>(liveEndpoints);
+			}
+			// send the stop session to all clients at once rather than one after
+			// the other, since a slow client would hold up the rest
+			broadcastStopSession(currentEndpoints);
+		}
+	}
+	
+	/**
+	 * Close all of the endpoints that are live at this point.
+	 */
+	private void closeLiveEndpoints() {
+		HashSet<Endpoint> currentEndpoints;
 		synchronized(liveEndpoints) {
 			currentEndpoints = new HashSet<>(liveEndpoints);
 		}
-		
-		// if we want to tell clients to end session
-		// it is indeed possible that both may be set true
-		if(forceShutdown && !vaderShutdown) {
-			// let's send a stop session to existing clients
-			currentEndpoints.forEach((endpoint)->{
+		currentEndpoints.forEach((endpoint)->{
+			endpoint.close();
+		});
+	}
+	
+	/**
+	 * Send a session stop request to each of the endpoints in parallel, and
+	 * wait until all of the requests have been written.
+	 * @param endpoints
+	 */
+	private void broadcastStopSession(Set<Endpoint> endpoints) {
+		if(endpoints.isEmpty()) return;
+		ExecutorService pool = Executors.newFixedThreadPool(
+				Math.min(endpoints.size(),Utils.shutdownBroadcastThreads));
+		endpoints.forEach((endpoint)->{
+			pool.execute(()->{
 				SessionProtocol sessionProtocol=(SessionProtocol) endpoint.getProtocol("SessionProtocol");
 				if(sessionProtocol!=null)
 					sessionProtocol.stopSession();
 			});
+		});
+		pool.shutdown();
+		try {
+			if(!pool.awaitTermination(Utils.shutdownDrainTimeout,TimeUnit.MILLISECONDS))
+				log.warning("not all session stop requests could be sent");
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
 		}
-		
-		// in this case we just close the endpoints, which will likely cause
-		// abrupt disconnection
-		if(vaderShutdown) {
-			// let's just close everything
-			currentEndpoints.forEach((endpoint)->{
-				endpoint.close();
-			});
-		}
-		
-		// let's wait for the remaining clients if we can
-		while(numLiveEndpoints()>0 && !vaderShutdown) {
-			log.warning("still waiting for "+numLiveEndpoints()+" to finish");
-			try {
-				Thread.sleep(1000); // just wait a little longer
-			} catch (InterruptedException e) {
-				if(numLiveEndpoints()>0) {
-					log.severe("terminating server with "+numLiveEndpoints()+
-							" still unfinished");
-				}
-				break;
-			}
-			if(vaderShutdown) {
-				// maybe we missed some earlier
-				synchronized(liveEndpoints) {
-					currentEndpoints = new HashSet<>(liveEndpoints);
-				}
-				currentEndpoints.forEach((endpoint)->{
-						endpoint.close();
-				});
+	}
+	
+	/**
+	 * Wait until there are no live endpoints or the deadline has passed.
+	 * Woken by {@link #endpointClosed(Endpoint)} each time an endpoint closes,
+	 * and by a forced shutdown, which ends a graceful wait early.
+	 * @param deadline in ms since the epoch
+	 * @return true if all endpoints have closed, false if the deadline passed
+	 * or the shutdown was escalated first
+	 * @throws InterruptedException
+	 */
+	private boolean awaitLiveEndpoints(long deadline) throws InterruptedException {
+		boolean graceful = !forceShutdown && !vaderShutdown;
+		synchronized(liveEndpoints) {
+			while(!liveEndpoints.isEmpty()) {
+				if(graceful && (forceShutdown || vaderShutdown)) return false;
+				long remaining = deadline-Instant.now().toEpochMilli();
+				if(remaining<=0) return false;
+				liveEndpoints.wait(remaining);
 			}
 		}
-		log.info("terminated");
+		return true;
 	}
 	
 	/**
@@ -268,7 +441,15 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * @param clientSocket the socket connection for the client.
 	 */
 	public void acceptClient(Socket clientSocket) {
-		Endpoint endpoint = new Endpoint(clientSocket,this);
+		acceptClient(new SocketConnection(clientSocket));
+	}
+	
+	/**
+	 * A new client has connected to the server, over any transport.
+	 * @param connection the connection for the client.
+	 */
+	public void acceptClient(IConnection connection) {
+		Endpoint endpoint = new Endpoint(connection,this);
 		endpoint.start();
 	}
 	
@@ -344,6 +525,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	public void endpointClosed(Endpoint endpoint) {
 		synchronized(liveEndpoints) {
 			liveEndpoints.remove(endpoint);
+			liveEndpoints.notifyAll(); // the server may be waiting to shutdown
 		}
 	}
 
@@ -363,20 +545,153 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 				sessionProtocol.stopSession();
 		}
 		
+		SessionProtocol sessionProtocol=(SessionProtocol) endpoint.getProtocol("SessionProtocol");
+		if(sessionProtocol.getProtocols()!=null) {
+			// the keep alive protocol is already running, the event protocol is
+			// started below, so the client needs nothing more from us
+			for(String protocolName : sessionProtocol.getProtocols()) {
+				if(!protocolName.equals(KeepAliveProtocol.protocolName) &&
+						!protocolName.equals(EventProtocol.protocolName) &&
+						!protocolName.equals(SessionProtocol.protocolName))
+					log.warning("client wants to run an unknown protocol: "+protocolName);
+			}
+		}
+		ResumableSession session=sessionProtocol.getResumedSession();
+		boolean resumed=session!=null;
+		if(!resumed) session=new ResumableSession(sessionProtocol.getSessionToken(),endpoint);
+		synchronized(sessions) {
+			sessions.put(session.getToken(),session);
+			endpointSessions.put(endpoint,session);
+		}
+		
 		// now start the event protocol
-		EventProtocol eventProtocol = new EventProtocol(endpoint,this);
+		EventProtocol eventProtocol = new EventProtocol(endpoint,this,session);
 		try {
 			endpoint.handleProtocol(eventProtocol);
 			eventProtocol.startAsServer();
 		} catch (ProtocolAlreadyRunning e) {
 			// hmmm... already requested by the client
 		}
+		// send anything the client missed while it was disconnected, unless
+		// it has been dropped from the buffer since the resume was accepted
+		if(!session.attach(endpoint,eventProtocol,sessionProtocol.getPeerLastSeq())) {
+			log.warning("client missed events that can no longer be sent: "+endpoint.getOtherEndpointId());
+			dropSession(endpoint,session);
+			return;
+		}
 		
 		// the event protocol has started but still no events
 		// could have been received at this point
-		localEmit(sessionStarted,endpoint);
+		if(resumed) {
+			log.info("session resumed with client: "+endpoint.getOtherEndpointId());
+			localEmit(sessionResumed,session.getEndpoint());
+		} else {
+			localEmit(sessionStarted,endpoint);
+			// handlers are in place now, so deliver the events that came with
+			// the session start request, in the order they were sent
+			for(EventRequest eventRequest : sessionProtocol.getInitialEvents()) {
+				endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());
+			}
+		}
 		
 	}
+	
+	/**
+	 * A client has reconnected and wants to resume its session. We can do so
+	 * as long as we still have the session and the events the client missed.
+	 * The client may well have noticed the lost connection before we did, in
+	 * which case the session simply moves to the new connection.
+	 * @param endpoint
+	 * @param token
+	 * @param lastSeq
+	 * @return the session to resume or null if it can't be
+	 */
+	@Override
+	public ResumableSession sessionResuming(Endpoint endpoint, String token, long lastSeq) {
+		if(forceShutdown || vaderShutdown) return null;
+		synchronized(sessions) {
+			ResumableSession session=sessions.get(token);
+			if(session==null || !session.canReplayFrom(lastSeq)) {
+				log.info("client asked to resume a session that can't be resumed: "+token);
+				return null;
+			}
+			return session;
+		}
+	}
+	
+	/**
+	 * The connection carrying a session has been lost or has to be dropped. If
+	 * the session can be resumed then we give the client some time to do so,
+	 * otherwise, or if the client does not come back in time, the session
+	 * is ended in error.
+	 * @param endpoint the endpoint of the connection
+	 * @param resumable whether the client may resume the session
+	 */
+	private void sessionLost(Endpoint endpoint, boolean resumable) {
+		ResumableSession session;
+		synchronized(sessions) {
+			session=endpointSessions.remove(endpoint);
+		}
+		if(session==null) {
+			// the session never started, unless we have already dealt with
+			// this endpoint and closed it, in which case it has no protocols
+			if(endpoint.getProtocol(SessionProtocol.protocolName)!=null)
+				localEmit(sessionError,endpoint);
+			return;
+		}
+		if(!session.detach(endpoint)) {
+			// the client already resumed the session on another connection
+			return;
+		}
+		if(!resumable || forceShutdown || vaderShutdown) {
+			endSession(session,sessionError);
+			return;
+		}
+		log.info("waiting for client to resume session: "+session.getToken());
+		Utils.getInstance().setTimeout(()->{
+			if(session.getTransport()==endpoint) {
+				// not resumed on any other connection
+				endSession(session,sessionError);
+			}
+		}, Utils.sessionResumeTimeout);
+	}
+	
+	/**
+	 * We never received some of the events a client sent in the session.
+	 * @param endpoint
+	 * @param session
+	 */
+	@Override
+	public void eventsMissed(Endpoint endpoint, ResumableSession session) {
+		log.severe("events from client "+endpoint.getOtherEndpointId()+" were lost");
+		dropSession(endpoint,session);
+	}
+	
+	/**
+	 * End a session that can not carry on in error and close its connection.
+	 * The client will not be able to resume it and starts a new one.
+	 * @param endpoint
+	 * @param session
+	 */
+	private void dropSession(Endpoint endpoint, ResumableSession session) {
+		synchronized(sessions) {
+			endpointSessions.remove(endpoint);
+		}
+		endSession(session,sessionError);
+		endpoint.close();
+	}
+	
+	/**
+	 * Forget a session and tell the application that it has ended.
+	 * @param session
+	 * @param event either {@link #sessionStopped} or {@link #sessionError}
+	 */
+	private void endSession(ResumableSession session, String event) {
+		synchronized(sessions) {
+			if(sessions.remove(session.getToken())==null) return; // already ended
+		}
+		localEmit(event,session.getEndpoint());
+	}
 
 	/**
 	 * The session has been stopped (usually by the client). The session should
@@ -389,7 +704,15 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	public void sessionStopped(Endpoint endpoint) {
 		log.info("session has stopped with client: "+endpoint.getOtherEndpointId());
 		
-		localEmit(sessionStopped,endpoint);
+		ResumableSession session;
+		synchronized(sessions) {
+			session=endpointSessions.remove(endpoint);
+		}
+		if(session!=null) {
+			endSession(session,sessionStopped);
+		} else {
+			localEmit(sessionStopped,endpoint);
+		}
 		
 		// we can now signal the client endpoint to close and forget this client
 		endpoint.close(); // will stop all remaining protocols
@@ -434,7 +757,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void protocolViolation(Endpoint endpoint, Protocol protocol) {
 		log.severe("client "+endpoint.getOtherEndpointId()+" violated the protocol "+protocol.getProtocolName());
-		localEmit(sessionError,endpoint);
+		sessionLost(endpoint,false);
 		endpoint.close();
 	}
 	
@@ -447,7 +770,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointDisconnectedAbruptly(Endpoint endpoint) {
 		log.severe("client disconnected abruptly "+endpoint.getOtherEndpointId());
-		localEmit(sessionError,endpoint);
+		sessionLost(endpoint,true);
 		endpoint.close();
 	}
 	
@@ -459,7 +782,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointSentInvalidMessage(Endpoint endpoint) {
 		log.severe("client sent an invalid message "+endpoint.getOtherEndpointId());
-		localEmit(sessionError,endpoint);
+		sessionLost(endpoint,false);
 		endpoint.close();
 	}
 
@@ -472,7 +795,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointTimedOut(Endpoint endpoint, Protocol protocol) {
 		log.severe("client "+endpoint.getOtherEndpointId()+" has timed out on protocol "+protocol.getProtocolName());
-		localEmit(sessionError,endpoint);
+		sessionLost(endpoint,true);
 		endpoint.close();
 	}
 
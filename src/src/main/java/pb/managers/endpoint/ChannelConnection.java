@@ -0,0 +1,154 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pb.utils.Utils;
+
+/**
+ * A connection over a blocking socket channel, used for Unix domain sockets
+ * so that endpoints on the same host can talk without going through the
+ * TCP stack. Addresses of such sockets are given as "unix:/path/to/socket".
+ * <br/>
+ * The streams read and write the channel directly rather than using
+ * {@link java.nio.channels.Channels#newInputStream}, whose streams lock the
+ * channel for the duration of a read and so would hold up the endpoint's
+ * writes while its thread is blocked reading.
+ *
+ * @see {@link pb.managers.endpoint.IConnection}
+ * @author aaron
+ *
+ */
+public class ChannelConnection implements IConnection {
+
+	/**
+	 * Numbers connections, to tell them apart in the logs since
+	 * Unix domain sockets of clients have no address.
+	 */
+	private static final AtomicLong connections = new AtomicLong();
+
+	/**
+	 * The channel this connection is wrapped around.
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * Id of the other endpoint.
+	 */
+	private final String remoteId;
+
+	private final InputStream in;
+	private final OutputStream out;
+
+	/**
+	 *
+	 * @param channel a connected, blocking, socket channel
+	 * @param path of the socket the channel is connected through
+	 */
+	public ChannelConnection(SocketChannel channel, String path) {
+		this.channel=channel;
+		this.remoteId=Utils.unixScheme+path+"#"+connections.incrementAndGet();
+		in = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b,0,1)==-1 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if(len==0) return 0;
+				return channel.read(ByteBuffer.wrap(b,off,len));
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+		out = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte) b},0,1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buffer = ByteBuffer.wrap(b,off,len);
+				while(buffer.hasRemaining()) channel.write(buffer);
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+
+	/**
+	 * Connect to a Unix domain socket.
+	 * @param path of the socket
+	 * @return the connection
+	 * @throws IOException if the socket does not exist or can't be connected to
+	 */
+	public static ChannelConnection connect(String path) throws IOException {
+		SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			channel.connect(UnixDomainSocketAddress.of(path));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return new ChannelConnection(channel,path);
+	}
+
+	/**
+	 *
+	 * @param address of a server
+	 * @return true if the address is that of a Unix domain socket
+	 */
+	public static boolean isUnixAddress(String address) {
+		return address!=null && address.startsWith(Utils.unixScheme);
+	}
+
+	/**
+	 *
+	 * @param address of a Unix domain socket, "unix:/path/to/socket"
+	 * @return the path of the socket
+	 */
+	public static String unixPath(String address) {
+		return address.substring(Utils.unixScheme.length());
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return out;
+	}
+
+	@Override
+	public ByteChannel getChannel() {
+		return channel;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	@Override
+	public String getRemoteId() {
+		return remoteId;
+	}
+}
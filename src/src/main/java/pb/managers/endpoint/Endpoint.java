@@ -42,9 +42,9 @@ public class Endpoint extends Eventable {
 	private static Logger log = Logger.getLogger(Endpoint.class.getName());
 	
 	/**
-	 * The socket this endpoint is wrapped around.
+	 * The connection this endpoint is wrapped around.
 	 */
-	private Socket socket;
+	private IConnection connection;
 	
 	/**
 	 * The manager to report to when things happen.
@@ -61,6 +61,12 @@ public class Endpoint extends Eventable {
 	 */
 	private DataOutputStream out=null;
 	
+	/**
+	 * Reads and writes frames with pooled buffers, used instead of the
+	 * data streams when the connection has a channel.
+	 */
+	private FrameCodec codec=null;
+	
 	/**
 	 * A protocol name to protocol map, of protocols in use.
 	 */
@@ -87,7 +93,17 @@ public class Endpoint extends Eventable {
 	 * @param manager
 	 */
 	public Endpoint(Socket socket, IEndpointHandler manager) {
-		this.socket = socket;
+		this(new SocketConnection(socket),manager);
+	}
+	
+	/**
+	 * Initialise the endpoint with a connection, over any transport,
+	 * and a manager.
+	 * @param connection
+	 * @param manager
+	 */
+	public Endpoint(IConnection connection, IEndpointHandler manager) {
+		this.connection = connection;
 		this.manager = manager;
 		protocols = new HashMap<>();
 		outstandingIds = new HashSet<>();
@@ -97,6 +113,8 @@ public class Endpoint extends Eventable {
 	/**
 	 * Send a Message on the socket for this endpoint. This is synchronized
 	 * to avoid multiple concurrent messages overwriting each other on the socket.
+	 * Over a channel, interrupting the sending thread while it is blocked
+	 * writing closes the connection, see {@link FrameCodec}.
 	 * @param msg
 	 * @return true if the message was sent, false otherwise
 	 */
@@ -104,8 +122,12 @@ public class Endpoint extends Eventable {
 		if(stopped) return false;
 		try {
 			log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
-			out.writeUTF(msg.toJsonString());
-			out.flush();
+			if(codec!=null) {
+				codec.writeFrame(msg.toJsonString());
+			} else {
+				out.writeUTF(msg.toJsonString());
+				out.flush();
+			}
 		} catch (IOException e) {
 			manager.endpointDisconnectedAbruptly(this);
 			return false;
@@ -199,7 +221,7 @@ public class Endpoint extends Eventable {
 			log.warning("connection did not close properly: "+e.getMessage());
 		}
 		try {
-			socket.close();
+			connection.close();
 		} catch (IOException e) {
 			log.warning("socket did not close properly: "+e.getMessage());
 		}
@@ -212,8 +234,12 @@ public class Endpoint extends Eventable {
 	@Override
 	public void run() {
 		try {
-			in = new DataInputStream(socket.getInputStream());
-			out = new DataOutputStream(socket.getOutputStream());
+			if(connection.getChannel()!=null) {
+				codec = new FrameCodec(connection.getChannel(),connection.getChannel());
+			} else {
+				in = new DataInputStream(connection.getInputStream());
+				out = new DataOutputStream(connection.getOutputStream());
+			}
 		} catch (IOException e){
 			manager.endpointDisconnectedAbruptly(this);
 			return;
@@ -223,7 +249,7 @@ public class Endpoint extends Eventable {
 		log.info("endpoint has started to: "+getOtherEndpointId());
 		while(!isInterrupted()) {
 			try {
-				String line=in.readUTF();
+				String line=codec!=null ? codec.readFrame() : in.readUTF();
 				Message msg = Message.toMessage(line);
 				// cancel any related time out
 				if(msg.getType()==Message.Type.Reply) {
@@ -271,7 +297,7 @@ public class Endpoint extends Eventable {
 			}
 		}
 		try {
-			in.close();
+			if(in!=null) in.close();
 		} catch (IOException e) {
 			log.warning("connection did not close properly: "+e.getMessage());
 		}
@@ -319,7 +345,7 @@ public class Endpoint extends Eventable {
 	 * @return the id of the other endpoint
 	 */
 	public String getOtherEndpointId() {
-		return socket.getInetAddress().toString()+":"+socket.getPort();
+		return connection.getRemoteId();
 	}
 
 	/**
@@ -0,0 +1,163 @@
+package pb.managers.endpoint;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import pb.utils.BufferPool;
+
+/**
+ * Reads and writes frames on a channel using pooled direct buffers. A frame
+ * is exactly what {@link java.io.DataOutputStream#writeUTF(String)} writes, a
+ * two byte length followed by the string in modified UTF-8, so an endpoint
+ * using the codec talks to one using data streams without either noticing.
+ * <br/>
+ * The only allocation per frame is the string that is read; buffers come
+ * from and go back to the {@link pb.utils.BufferPool}, and characters are
+ * decoded into an array that is kept between frames. One codec is used per
+ * endpoint; reading is done by the endpoint thread only and writing is
+ * synchronized by the endpoint.
+ * <br/>
+ * The channels of sockets are interruptible, unlike their streams: a thread
+ * that is interrupted while it is blocked reading or writing closes the
+ * channel, and so the connection. A thread that writes a frame while it has
+ * already been interrupted does not, since the interrupt is put aside until
+ * the frame is written.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint}
+ * @author aaron
+ *
+ */
+public class FrameCodec {
+
+	/**
+	 * Largest number of bytes in the body of a frame.
+	 */
+	private static final int maxFrameLength = 65535;
+
+	private final ReadableByteChannel in;
+	private final WritableByteChannel out;
+
+	/**
+	 * Length of the frame being read.
+	 */
+	private final ByteBuffer header = ByteBuffer.allocateDirect(2);
+
+	/**
+	 * Characters of the frame being read.
+	 */
+	private char[] chars = new char[256];
+
+	/**
+	 *
+	 * @param in channel to read frames from
+	 * @param out channel to write frames to
+	 */
+	public FrameCodec(ReadableByteChannel in, WritableByteChannel out) {
+		this.in=in;
+		this.out=out;
+	}
+
+	/**
+	 * Write a string as a frame. The buffer is released once the write completes.
+	 * @param str to write
+	 * @throws UTFDataFormatException if the string is too long for a frame
+	 * @throws IOException if the channel can't be written to
+	 */
+	public void writeFrame(String str) throws IOException {
+		int length = str.length();
+		// room for the worst case, or for just enough to find out it is too long
+		ByteBuffer buffer = BufferPool.getInstance().acquire(2+Math.min(3*length,maxFrameLength+3));
+		// writing with the interrupt set would close the channel
+		boolean interrupted = Thread.interrupted();
+		try {
+			buffer.position(2);
+			for(int i=0;i<length;i++) {
+				char c = str.charAt(i);
+				if(buffer.position()-2>maxFrameLength)
+					throw new UTFDataFormatException("encoded string too long: "+length+" characters");
+				if(c>=0x0001 && c<=0x007F) {
+					buffer.put((byte) c);
+				} else if(c>0x07FF) {
+					buffer.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+					buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+					buffer.put((byte) (0x80 | (c & 0x3F)));
+				} else {
+					buffer.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+					buffer.put((byte) (0x80 | (c & 0x3F)));
+				}
+			}
+			int utflen = buffer.position()-2;
+			if(utflen>maxFrameLength)
+				throw new UTFDataFormatException("encoded string too long: "+utflen+" bytes");
+			buffer.putShort(0,(short) utflen);
+			buffer.flip();
+			while(buffer.hasRemaining()) out.write(buffer);
+		} finally {
+			BufferPool.getInstance().release(buffer);
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Block until a whole frame has been read.
+	 * @return the string in the frame
+	 * @throws EOFException if the channel ends before the frame does
+	 * @throws UTFDataFormatException if the frame is not modified UTF-8
+	 * @throws IOException if the channel can't be read from
+	 */
+	public String readFrame() throws IOException {
+		header.clear();
+		readFully(header);
+		int utflen = header.getShort(0) & 0xFFFF;
+		ByteBuffer buffer = BufferPool.getInstance().acquire(utflen);
+		try {
+			buffer.limit(utflen);
+			readFully(buffer);
+			buffer.flip();
+			if(chars.length<utflen) chars = new char[Math.max(utflen,2*chars.length)];
+			int count = 0;
+			while(buffer.hasRemaining()) {
+				int c = buffer.get() & 0xFF;
+				switch(c >> 4) {
+				case 0: case 1: case 2: case 3: case 4: case 5: case 6: case 7:
+					chars[count++] = (char) c;
+					break;
+				case 12: case 13: {
+					if(buffer.remaining()<1)
+						throw new UTFDataFormatException("malformed input: partial character at end");
+					int c2 = buffer.get();
+					if((c2 & 0xC0) != 0x80)
+						throw new UTFDataFormatException("malformed input around byte "+buffer.position());
+					chars[count++] = (char) (((c & 0x1F) << 6) | (c2 & 0x3F));
+					break;
+				}
+				case 14: {
+					if(buffer.remaining()<2)
+						throw new UTFDataFormatException("malformed input: partial character at end");
+					int c2 = buffer.get();
+					int c3 = buffer.get();
+					if(((c2 & 0xC0) != 0x80) || ((c3 & 0xC0) != 0x80))
+						throw new UTFDataFormatException("malformed input around byte "+buffer.position());
+					chars[count++] = (char) (((c & 0x0F) << 12) | ((c2 & 0x3F) << 6) | (c3 & 0x3F));
+					break;
+				}
+				default:
+					throw new UTFDataFormatException("malformed input around byte "+buffer.position());
+				}
+			}
+			return new String(chars,0,count);
+		} finally {
+			BufferPool.getInstance().release(buffer);
+		}
+	}
+
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			if(in.read(buffer)==-1) throw new EOFException();
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ByteChannel;
+
+/**
+ * A connection between two endpoints, whatever the transport it uses.
+ * The endpoint only needs a pair of byte streams to read and write
+ * messages, and a way to close them. Connections that have a channel also
+ * give it, so that the endpoint can read and write frames with pooled
+ * buffers rather than through the streams.
+ *
+ * @see {@link pb.managers.endpoint.SocketConnection}
+ * @see {@link pb.managers.endpoint.ChannelConnection}
+ * @author aaron
+ *
+ */
+public interface IConnection {
+	/**
+	 *
+	 * @return the stream to read from the other endpoint
+	 * @throws IOException
+	 */
+	public InputStream getInputStream() throws IOException;
+
+	/**
+	 *
+	 * @return the stream to write to the other endpoint
+	 * @throws IOException
+	 */
+	public OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * A channel of a socket is interruptible: interrupting a thread that is
+	 * blocked reading or writing it closes the connection.
+	 * @return the channel to read and write, or null if there are only streams
+	 */
+	public ByteChannel getChannel();
+
+	/**
+	 * Close the connection, which makes any blocked read or write fail.
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+
+	/**
+	 *
+	 * @return an id for the other endpoint, for logging
+	 */
+	public String getRemoteId();
+}
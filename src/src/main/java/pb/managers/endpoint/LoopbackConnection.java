@@ -0,0 +1,309 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ByteChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pb.utils.Utils;
+
+/**
+ * A connection between two endpoints in the same JVM, made of a pair of
+ * in-memory queues instead of a socket. Messages are still written and read
+ * as bytes with exactly the same framing as over a socket, so the endpoints
+ * and protocols behave just as they do over the network, but without the
+ * kernel being involved; this allows thousands of peers to be simulated in
+ * one process. Addresses of loopback servers are given as "local:name".
+ * <br/>
+ * Each write is copied, since the writer may reuse its buffer, and handed to
+ * the other side whole. At most {@link pb.utils.Utils#loopbackBufferBytes}
+ * bytes can be written that the other side has not yet taken, after which
+ * writes block, as they would once a socket's send buffer is full.
+ * <br/>
+ * A server listens on a name with {@link #listen(String)} and clients
+ * connect to that name with {@link #connect(String)}.
+ *
+ * @see {@link pb.managers.endpoint.IConnection}
+ * @author aaron
+ *
+ */
+public class LoopbackConnection implements IConnection {
+
+	/**
+	 * Listeners by name.
+	 */
+	private static final Map<String,Listener> listeners = new ConcurrentHashMap<>();
+
+	/**
+	 * Numbers connections, to tell them apart in the logs.
+	 */
+	private static final AtomicLong connections = new AtomicLong();
+
+	/**
+	 * Put on a queue to say that the writing side has closed.
+	 */
+	private static final byte[] closed = new byte[0];
+
+	/**
+	 * The bytes going one way: one array per write, and the room left for
+	 * more.
+	 */
+	private static class Pipe {
+		final LinkedBlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+		final Semaphore room = new Semaphore(Utils.loopbackBufferBytes);
+	}
+
+	/**
+	 * Accepts loopback connections made to a name.
+	 */
+	public static class Listener {
+		private final String name;
+		private final LinkedBlockingQueue<LoopbackConnection> pending;
+		private volatile boolean open=true;
+
+		private Listener(String name) {
+			this.name=name;
+			pending=new LinkedBlockingQueue<>();
+		}
+
+		/**
+		 * Block until a connection is made to this listener.
+		 * @return the server side of the connection
+		 * @throws IOException if the listener is closed
+		 */
+		public LoopbackConnection accept() throws IOException {
+			try {
+				LoopbackConnection connection = pending.take();
+				if(connection.in==null) {
+					pending.add(connection); // for the other acceptors
+					throw new IOException("listener closed");
+				}
+				return connection;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while accepting");
+			}
+		}
+
+		/**
+		 * Stop accepting connections, waking up any thread blocked in
+		 * {@link #accept()}. Connections already made are not affected.
+		 */
+		public void close() {
+			if(!open) return;
+			open=false;
+			listeners.remove(name,this);
+			pending.add(new LoopbackConnection(null,null,name));
+		}
+
+		/**
+		 *
+		 * @return the name the listener listens on
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 *
+		 * @return true if the listener has been closed
+		 */
+		public boolean isClosed() {
+			return !open;
+		}
+	}
+
+	/**
+	 * Bytes written by the other side, and the bytes we write to the other
+	 * side.
+	 */
+	private final Pipe in;
+	private final Pipe out;
+
+	/**
+	 * The other side of the connection.
+	 */
+	private LoopbackConnection peer;
+	
+	/**
+	 * Whether this side has been closed.
+	 */
+	private volatile boolean isClosed=false;
+
+	/**
+	 * Id of the other endpoint.
+	 */
+	private final String remoteId;
+
+	private final InputStream inputStream;
+	private final OutputStream outputStream;
+
+	private LoopbackConnection(Pipe in, Pipe out, String name) {
+		this.in=in;
+		this.out=out;
+		this.remoteId=Utils.localScheme+name+"#"+connections.incrementAndGet();
+		inputStream = new InputStream() {
+			private byte[] chunk=null;
+			private int pos=0;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b,0,1)==-1 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if(len==0) return 0;
+				if(chunk==closed) return -1;
+				if(chunk==null || pos==chunk.length) {
+					try {
+						chunk=in.chunks.take();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("interrupted while reading");
+					}
+					pos=0;
+					if(chunk==closed) {
+						in.chunks.add(closed); // for anyone else reading
+						return -1;
+					}
+					in.room.release(roomFor(chunk.length));
+				}
+				int n=Math.min(len,chunk.length-pos);
+				System.arraycopy(chunk,pos,b,off,n);
+				pos+=n;
+				return n;
+			}
+		};
+		outputStream = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte) b},0,1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if(len==0) return;
+				if(isClosed || peer.isClosed) throw new IOException("connection closed");
+				try {
+					out.room.acquire(roomFor(len));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted while writing");
+				}
+				if(isClosed || peer.isClosed) {
+					// woken by the close, so let any other writer wake too
+					out.room.release(roomFor(len));
+					throw new IOException("connection closed");
+				}
+				out.chunks.add(Arrays.copyOfRange(b,off,off+len));
+			}
+		};
+	}
+
+	/**
+	 * 
+	 * @param length of a write
+	 * @return the room the write takes up, which is never more than all of it
+	 */
+	private static int roomFor(int length) {
+		return Math.min(length,Utils.loopbackBufferBytes);
+	}
+
+	/**
+	 * Start listening for loopback connections on a name.
+	 * @param name to listen on
+	 * @return the listener
+	 * @throws IOException if something is already listening on the name
+	 */
+	public static Listener listen(String name) throws IOException {
+		Listener listener = new Listener(name);
+		if(listeners.putIfAbsent(name,listener)!=null)
+			throw new IOException("already listening on "+Utils.localScheme+name);
+		return listener;
+	}
+
+	/**
+	 * Connect to a listener in this JVM.
+	 * @param name the listener is listening on
+	 * @return the client side of the connection
+	 * @throws IOException if nothing is listening on the name
+	 */
+	public static LoopbackConnection connect(String name) throws IOException {
+		Listener listener = listeners.get(name);
+		if(listener==null || !listener.open)
+			throw new IOException("connection refused: "+Utils.localScheme+name);
+		Pipe toServer = new Pipe();
+		Pipe toClient = new Pipe();
+		LoopbackConnection server = new LoopbackConnection(toServer,toClient,name);
+		LoopbackConnection client = new LoopbackConnection(toClient,toServer,name);
+		server.peer=client;
+		client.peer=server;
+		listener.pending.add(server);
+		return client;
+	}
+
+	/**
+	 *
+	 * @param address of a server
+	 * @return true if the address is that of a loopback server
+	 */
+	public static boolean isLocalAddress(String address) {
+		return address!=null && address.startsWith(Utils.localScheme);
+	}
+
+	/**
+	 *
+	 * @param address of a loopback server, "local:name"
+	 * @return the name the server listens on
+	 */
+	public static String localName(String address) {
+		return address.substring(Utils.localScheme.length());
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return inputStream;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return outputStream;
+	}
+
+	/**
+	 * The bytes go through the queues one array per write, read back
+	 * through the input stream, so there is no channel.
+	 */
+	@Override
+	public ByteChannel getChannel() {
+		return null;
+	}
+
+	/**
+	 * Closing either side ends the stream for both: the other side reads
+	 * the end of the stream and our own blocked reads return as well, and
+	 * writes blocked waiting for room on either side fail.
+	 */
+	@Override
+	public void close() throws IOException {
+		if(isClosed) return;
+		isClosed=true;
+		out.chunks.add(closed);
+		in.chunks.add(closed);
+		out.room.release(Utils.loopbackBufferBytes);
+		in.room.release(Utils.loopbackBufferBytes);
+	}
+
+	@Override
+	public String getRemoteId() {
+		return remoteId;
+	}
+}
@@ -0,0 +1,56 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.ByteChannel;
+
+/**
+ * A connection over a TCP socket. If the socket was opened as a socket
+ * channel then the channel is used.
+ *
+ * @see {@link pb.managers.endpoint.IConnection}
+ * @author aaron
+ *
+ */
+public class SocketConnection implements IConnection {
+
+	/**
+	 * The socket this connection is wrapped around.
+	 */
+	private final Socket socket;
+
+	/**
+	 *
+	 * @param socket a connected socket
+	 */
+	public SocketConnection(Socket socket) {
+		this.socket=socket;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return socket.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return socket.getOutputStream();
+	}
+
+	@Override
+	public ByteChannel getChannel() {
+		return socket.getChannel();
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	@Override
+	public String getRemoteId() {
+		return socket.getInetAddress().toString()+":"+socket.getPort();
+	}
+}
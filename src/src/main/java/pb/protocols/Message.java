@@ -1,5 +1,7 @@
 package pb.protocols;
 
+import java.util.ArrayList;
+
 import pb.protocols.event.EventReply;
 import pb.protocols.event.EventRequest;
 import pb.protocols.keepalive.KeepAliveReply;
@@ -62,6 +64,16 @@ public class Message {
 		if(!(doc.get(key) instanceof String)) throw new InvalidMessage();
 	}
 	
+	static public void validateBooleanType(String key,Document doc) throws InvalidMessage {
+		if(!doc.containsKey(key)) throw new InvalidMessage();
+		if(!(doc.get(key) instanceof Boolean)) throw new InvalidMessage();
+	}
+	
+	static public void validateListType(String key,Document doc) throws InvalidMessage {
+		if(!doc.containsKey(key)) throw new InvalidMessage();
+		if(!(doc.get(key) instanceof ArrayList)) throw new InvalidMessage();
+	}
+	
 	/**
 	 * Initialiser when given parameters in a doc.
 	 * @param name the name of the message that is being initialised
@@ -7,6 +7,8 @@ import pb.managers.endpoint.Endpoint;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.protocols.session.EventsMissed;
+import pb.protocols.session.ResumableSession;
 
 /**
  * An event protocol for applications communicate using an asynchronous
@@ -24,6 +26,26 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	
 	public volatile boolean stopped=false;
 	
+	/**
+	 * The resumable session this protocol is carrying, if any.
+	 */
+	private ResumableSession session=null;
+	
+	/**
+	 * Event protocol carrying events for a resumable session. The session
+	 * rather than the protocol listens to events emitted on the session's
+	 * endpoint, and received events are emitted on the session's endpoint,
+	 * which need not be the endpoint this protocol is running on.
+	 * @param endpoint
+	 * @param manager
+	 * @param session
+	 */
+	public EventProtocol(Endpoint endpoint, IEventProtocolHandler manager,
+			ResumableSession session) {
+		super(endpoint, (Manager)manager);
+		this.session=session;
+	}
+	
 	/**
 	 * Event protocol will listen to all events emitted on the endpoint and
 	 * transmit them over the endpoint.
@@ -53,12 +75,17 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	public void sendEvent(String eventName, String eventData) {
 		if(stopped)return;
-		sendRequest(new EventRequest(eventName,eventData));
+		if(session!=null) {
+			session.send(eventName,eventData);
+		} else {
+			sendRequest(new EventRequest(eventName,eventData));
+		}
 	}
 	
 	@Override
 	public void stopProtocol() {
 		stopped=true;
+		if(session!=null) session.detach(endpoint);
 	}
 
 	@Override
@@ -93,7 +120,21 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 		if(stopped)return;
 		EventRequest eventRequest = (EventRequest)msg;
 		endpoint.sendAndCancelTimeout(new EventReply(), msg);
-		endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());	
+		if(session==null) {
+			endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());
+		} else {
+			try {
+				if(eventRequest.getSeq()==0 || session.received(eventRequest.getSeq())) {
+					session.getEndpoint().localEmit(eventRequest.getEventName(),eventRequest.getEventData());
+				} else {
+					log.info("dropping replayed event already received: "+eventRequest.getEventName());
+				}
+			} catch (EventsMissed e) {
+				// no more events are taken over this connection
+				stopped=true;
+				((IEventProtocolHandler)manager).eventsMissed(endpoint,session);
+			}
+		}
 	}
 
 	@Override
@@ -12,11 +12,24 @@ public class EventRequest extends Message {
 		doc.append("eventName", eventName);
 		doc.append("eventData", eventData);
 	}
+	
+	/**
+	 * An event that is part of a resumable session, numbered so that
+	 * it can be replayed after a reconnect and duplicates dropped.
+	 * @param eventName
+	 * @param eventData
+	 * @param seq sequence number of the event within the session
+	 */
+	public EventRequest(String eventName, String eventData, long seq) {
+		this(eventName,eventData);
+		doc.append("seq", seq);
+	}
 
 	public EventRequest(Document doc) throws InvalidMessage {
 		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
 		Message.validateStringType("eventName", doc);
 		Message.validateStringType("eventData", doc);
+		if(doc.containsKey("seq")) Message.validateLongType("seq", doc);
 		this.doc=doc;
 	}
 	
@@ -27,4 +40,14 @@ public class EventRequest extends Message {
 	public String getEventData() {
 		return doc.getString("eventData");
 	}
+	
+	/**
+	 * 
+	 * @return the sequence number of the event, or 0 if it has none
+	 */
+	public long getSeq() {
+		if(doc.containsKey("seq"))
+			return doc.getLong("seq");
+		else return 0;
+	}
 }
@@ -1,8 +1,18 @@
 package pb.protocols.event;
 
+import pb.managers.endpoint.Endpoint;
+import pb.protocols.session.ResumableSession;
 
 public interface IEventProtocolHandler {
-	// actually there is nothing that this protocol specifically
+	// otherwise there is nothing that this protocol specifically
 	// needs to signal in the manager, rather manager can listen
 	// for events
+	
+	/**
+	 * Events of the session carried over the endpoint were never received,
+	 * so the session can not carry on.
+	 * @param endpoint
+	 * @param session
+	 */
+	public void eventsMissed(Endpoint endpoint, ResumableSession session);
 }
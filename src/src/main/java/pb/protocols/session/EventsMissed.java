@@ -0,0 +1,14 @@
+package pb.protocols.session;
+
+/**
+ * Events of a session were never received, and can no longer be replayed,
+ * so the session can not carry on.
+ * 
+ * @see {@link pb.protocols.session.ResumableSession}
+ * @author aaron
+ *
+ */
+@SuppressWarnings("serial")
+public class EventsMissed extends Exception {
+
+}
@@ -14,4 +14,15 @@ public interface ISessionProtocolHandler {
 	 * @param endpoint
 	 */
 	public void sessionStopped(Endpoint endpoint);
+	
+	/**
+	 * The other side has asked to resume a session that it previously
+	 * started. Called before the session start is replied to.
+	 * @param endpoint the endpoint of the new connection
+	 * @param token the token of the session to resume
+	 * @param lastSeq sequence number of the last event the other side received
+	 * @return the session to resume, or null if it can not be resumed, in
+	 * which case a new session is started
+	 */
+	public ResumableSession sessionResuming(Endpoint endpoint, String token, long lastSeq);
 }
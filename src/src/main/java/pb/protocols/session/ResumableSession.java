@@ -0,0 +1,228 @@
+package pb.protocols.session;
+
+import java.util.ArrayDeque;
+import java.util.logging.Logger;
+
+import pb.managers.endpoint.Endpoint;
+import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventRequest;
+import pb.utils.Utils;
+
+/**
+ * The state of a session that outlives the connection it was started on, so
+ * that a client that loses its connection can reconnect and carry on where
+ * it left off.
+ * <br/>
+ * Applications only ever see the endpoint that the session was started on.
+ * Events emitted on that endpoint are numbered and kept in a bounded buffer
+ * before being sent over whichever connection currently carries the session,
+ * and events received on any connection are emitted locally on that
+ * endpoint. When the session is resumed over a new connection, the events
+ * that the other side has not yet seen are replayed from the buffer, and
+ * replayed events that were already received are dropped by their sequence
+ * number. A session whose events can not all be replayed, or that receives
+ * an event with events missing before it, can not carry on, and has to be
+ * ended so that the application starts over.
+ *
+ * @see {@link pb.protocols.session.SessionProtocol}
+ * @see {@link pb.protocols.event.EventProtocol}
+ * @author aaron
+ *
+ */
+public class ResumableSession {
+	private static Logger log = Logger.getLogger(ResumableSession.class.getName());
+
+	/**
+	 * Token identifying the session, issued by the side that accepted
+	 * the session start request.
+	 */
+	private final String token;
+
+	/**
+	 * The endpoint the session was started on, which the application uses.
+	 */
+	private final Endpoint endpoint;
+
+	/**
+	 * The endpoint currently carrying the session, which is the last
+	 * endpoint it was attached to even if that has since disconnected.
+	 */
+	private Endpoint transport;
+
+	/**
+	 * The event protocol currently carrying the session, or null while
+	 * disconnected.
+	 */
+	private EventProtocol eventProtocol;
+
+	/**
+	 * Guards the transport and event protocol, which change together. It
+	 * is never held while locking anything else, so that it can be taken
+	 * while the endpoint is locked.
+	 */
+	private final Object connectionLock = new Object();
+
+	/**
+	 * Sequence number for the next event sent.
+	 */
+	private long nextSeq=1;
+
+	/**
+	 * Sequence number of the last event received.
+	 */
+	private long lastReceivedSeq=0;
+
+	/**
+	 * The most recently sent events, oldest first.
+	 */
+	private final ArrayDeque<EventRequest> sent;
+
+	/**
+	 * Start a new session on the given endpoint. All events emitted on
+	 * the endpoint from now on are sent through the session.
+	 * @param token
+	 * @param endpoint
+	 */
+	public ResumableSession(String token, Endpoint endpoint) {
+		this.token=token;
+		this.endpoint=endpoint;
+		this.transport=endpoint;
+		sent=new ArrayDeque<>();
+		endpoint.on("*", (args)->{
+			String eventName = (String) args[0];
+			if(args.length==2 && args[1] instanceof String) {
+				send(eventName,(String) args[1]);
+			} else {
+				log.warning("emitted event must have only a single String data argument: "+eventName);
+			}
+		});
+	}
+
+	/**
+	 *
+	 * @return the token identifying this session
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 *
+	 * @return the endpoint the session was started on
+	 */
+	public Endpoint getEndpoint() {
+		return endpoint;
+	}
+
+	/**
+	 *
+	 * @return the endpoint that last carried the session
+	 */
+	public Endpoint getTransport() {
+		synchronized(connectionLock) {
+			return transport;
+		}
+	}
+
+	/**
+	 * Number an event, keep it for replay and send it if we are connected.
+	 * This is synchronized so that events go out in sequence number order.
+	 * @param eventName
+	 * @param eventData
+	 */
+	public synchronized void send(String eventName, String eventData) {
+		EventRequest eventRequest = new EventRequest(eventName,eventData,nextSeq++);
+		sent.addLast(eventRequest);
+		if(sent.size()>Utils.eventReplayBufferSize) sent.removeFirst();
+		EventProtocol protocol;
+		synchronized(connectionLock) {
+			protocol = eventProtocol;
+		}
+		if(protocol!=null) protocol.sendRequest(eventRequest);
+	}
+
+	/**
+	 * Note that an event has been received.
+	 * @param seq of the event received
+	 * @return true if the event is new, false if it was already received
+	 * @throws EventsMissed if events before it were never received, in which
+	 * case the event is not received either
+	 */
+	public synchronized boolean received(long seq) throws EventsMissed {
+		if(seq<=lastReceivedSeq) return false;
+		if(seq>lastReceivedSeq+1) {
+			log.severe("received event "+seq+" but the last event received was "+lastReceivedSeq);
+			throw new EventsMissed();
+		}
+		lastReceivedSeq=seq;
+		return true;
+	}
+
+	/**
+	 *
+	 * @return sequence number of the last event received
+	 */
+	public synchronized long getLastReceivedSeq() {
+		return lastReceivedSeq;
+	}
+
+	/**
+	 *
+	 * @param lastSeq the last event the other side has received
+	 * @return true if every event after lastSeq is still in the buffer
+	 */
+	public synchronized boolean canReplayFrom(long lastSeq) {
+		long oldest = sent.isEmpty() ? nextSeq : sent.peekFirst().getSeq();
+		return lastSeq+1>=oldest && lastSeq<nextSeq;
+	}
+
+	/**
+	 * Carry the session over a (new) connection, replaying every buffered
+	 * event that the other side has not yet received.
+	 * @param transport the endpoint of the connection
+	 * @param protocol the event protocol running on that endpoint
+	 * @param lastSeq the last event the other side has received
+	 * @return false, without the session being attached, if some of the
+	 * events the other side has not received are no longer buffered
+	 */
+	public synchronized boolean attach(Endpoint transport, EventProtocol protocol, long lastSeq) {
+		if(!canReplayFrom(lastSeq)) {
+			log.warning("events before "+(sent.isEmpty()?nextSeq:sent.peekFirst().getSeq())+
+					" can not be replayed, last received was "+lastSeq);
+			return false;
+		}
+		synchronized(connectionLock) {
+			this.transport=transport;
+			this.eventProtocol=protocol;
+		}
+		int replayed=0;
+		for(EventRequest eventRequest : sent) {
+			if(eventRequest.getSeq()>lastSeq) {
+				protocol.sendRequest(eventRequest);
+				replayed++;
+			}
+		}
+		if(replayed>0) log.info("replayed "+replayed+" events for session "+token);
+		return true;
+	}
+
+	/**
+	 * The given connection has been lost. Events are buffered until the
+	 * session is attached to another connection. This only takes the
+	 * connection lock, not the session lock, since it is called while the
+	 * endpoint is locked, whereas {@link #send(String, String)} locks the
+	 * endpoint while holding the session lock. The check and the clear are
+	 * one step, so that a session already attached to a new connection is
+	 * left on it.
+	 * @param lost the endpoint of the lost connection
+	 * @return true if the session was using that connection, false if it had
+	 * already moved to another one
+	 */
+	public boolean detach(Endpoint lost) {
+		synchronized(connectionLock) {
+			if(transport!=lost) return false;
+			eventProtocol=null;
+			return true;
+		}
+	}
+}
@@ -1,11 +1,15 @@
 package pb.protocols.session;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.protocols.event.EventRequest;
 import pb.utils.Utils;
 import pb.protocols.IRequestReplyProtocol;
 
@@ -18,6 +22,20 @@ import pb.protocols.IRequestReplyProtocol;
  * session stop request to the client if it wants (needs) to stop the session,
  * e.g. perhaps the server is becoming overloaded and needs to shed some
  * clients.
+ * <br/>
+ * The session start reply carries a token identifying the session. A client
+ * that loses its connection can give that token in the session start request
+ * of its next connection to resume the session, in which case both sides
+ * also exchange the sequence number of the last event they received so that
+ * missed events can be replayed, see
+ * {@link pb.protocols.session.ResumableSession}.
+ * <br/>
+ * The start request can also carry the protocols the client will run and
+ * the first events of a new session, so that the client's first request is
+ * answered in the same round trip that starts the session. The server says
+ * in its reply how many of those events it delivered; a client talking to a
+ * server that delivered none of them simply sends them once the session has
+ * started.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
@@ -57,6 +75,45 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	private volatile boolean stopped=false;
 	
+	/**
+	 * Session that the client is asking to resume, if any.
+	 */
+	private ResumableSession resumeFrom=null;
+	
+	/**
+	 * Token of the session, once it has started.
+	 */
+	private volatile String sessionToken=null;
+	
+	/**
+	 * The session that was resumed when the session started, or null
+	 * if a new session was started.
+	 */
+	private volatile ResumableSession resumedSession=null;
+	
+	/**
+	 * Sequence number of the last event the other side received in the
+	 * session, as exchanged when the session started.
+	 */
+	private volatile long peerLastSeq=0;
+	
+	/**
+	 * Names of the protocols the client will run in the session, or null
+	 * if not given.
+	 */
+	private volatile List<String> protocols=null;
+	
+	/**
+	 * Events carried by the start request, to be delivered as soon as the
+	 * session has started.
+	 */
+	private volatile List<EventRequest> initialEvents=new ArrayList<>();
+	
+	/**
+	 * Number of the initial events that the server delivered.
+	 */
+	private volatile long initialEventsDelivered=0;
+	
 	/**
 	 * Initialise the protocol with an endpoint and manager.
 	 * @param endpoint
@@ -74,6 +131,77 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 		return protocolName;
 	}
 
+	/**
+	 * Ask to resume the given session rather than start a new one. Must be
+	 * called before {@link #startAsClient()}.
+	 * @param session the session to resume
+	 */
+	public void resumeSession(ResumableSession session) {
+		resumeFrom=session;
+	}
+	
+	/**
+	 * Say which protocols the client will run and which events should be
+	 * carried by the start request. The events are only carried when a new
+	 * session is started, not when one is resumed. Must be called before
+	 * {@link #startAsClient()}.
+	 * @param protocols names of the protocols the client will run
+	 * @param initialEvents events to deliver as soon as the session starts
+	 */
+	public void startWith(List<String> protocols, List<EventRequest> initialEvents) {
+		this.protocols=protocols;
+		this.initialEvents=new ArrayList<>(initialEvents);
+	}
+	
+	/**
+	 * 
+	 * @return names of the protocols the client will run, or null if not given
+	 */
+	public List<String> getProtocols() {
+		return protocols;
+	}
+	
+	/**
+	 * 
+	 * @return the events carried by the start request
+	 */
+	public List<EventRequest> getInitialEvents() {
+		return initialEvents;
+	}
+	
+	/**
+	 * 
+	 * @return the number of events carried by the start request that were
+	 * delivered when the session started
+	 */
+	public long getInitialEventsDelivered() {
+		return initialEventsDelivered;
+	}
+	
+	/**
+	 * 
+	 * @return the token identifying the session, once it has started
+	 */
+	public String getSessionToken() {
+		return sessionToken;
+	}
+	
+	/**
+	 * 
+	 * @return the session that was resumed, or null if a new session started
+	 */
+	public ResumableSession getResumedSession() {
+		return resumedSession;
+	}
+	
+	/**
+	 * 
+	 * @return sequence number of the last event the other side received
+	 */
+	public long getPeerLastSeq() {
+		return peerLastSeq;
+	}
+	
 	/**
 	 * If this protocol is stopped while it is still in the running
 	 * state then this indicates something may be a problem.
@@ -98,7 +226,12 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	@Override
 	public void startAsClient() {
 		//  send the server a start session request
-		sendRequest(new SessionStartRequest());
+		if(resumeFrom!=null) {
+			sendRequest(new SessionStartRequest(resumeFrom.getToken(),
+					resumeFrom.getLastReceivedSeq(),protocols));
+		} else {
+			sendRequest(new SessionStartRequest(protocols,initialEvents));
+		}
 	}
 
 	/**
@@ -150,6 +283,11 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
+			SessionStartReply reply = (SessionStartReply) msg;
+			sessionToken=reply.getSessionToken();
+			peerLastSeq=reply.getLastSeq();
+			if(reply.isResumed()) resumedSession=resumeFrom;
+			initialEventsDelivered=resumedSession==null?reply.getInitialEvents():0;
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopReply) {
 			if(!protocolRunning) {
@@ -178,7 +316,24 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
-			endpoint.sendAndCancelTimeout(new SessionStartReply(),msg);
+			SessionStartRequest request = (SessionStartRequest) msg;
+			peerLastSeq=request.getLastSeq();
+			protocols=request.getProtocols();
+			if(request.getSessionToken()!=null) {
+				resumedSession=((ISessionProtocolHandler)manager).sessionResuming(endpoint,
+						request.getSessionToken(),request.getLastSeq());
+			}
+			long lastSeq=0;
+			if(resumedSession!=null) {
+				sessionToken=resumedSession.getToken();
+				lastSeq=resumedSession.getLastReceivedSeq();
+			} else {
+				sessionToken=UUID.randomUUID().toString();
+				initialEvents=request.getInitialEvents();
+				initialEventsDelivered=initialEvents.size();
+			}
+			endpoint.sendAndCancelTimeout(new SessionStartReply(sessionToken,
+					resumedSession!=null,lastSeq,initialEventsDelivered),msg);
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopRequest) {
 			if(!protocolRunning) {
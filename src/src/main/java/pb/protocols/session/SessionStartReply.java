@@ -5,7 +5,12 @@ import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 
 /**
- * Message sent in response to a start request.
+ * Message sent in response to a start request. It carries the token that
+ * identifies the session, so that the client can ask to resume it if the
+ * connection is lost, and whether a requested resumption was accepted. If
+ * it was, it also carries the sequence number of the last event the server
+ * received in the session. It also says how many of the events carried
+ * by the start request were delivered.
  * @see {@link pb.protocols.session.SessionProtocol}
  * @author aaron
  *
@@ -21,6 +26,32 @@ public class SessionStartReply extends Message {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply);
 	}
 	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param sessionToken the token identifying the session
+	 * @param resumed whether an existing session was resumed
+	 * @param lastSeq sequence number of the last event received in the session
+	 */
+	public SessionStartReply(String sessionToken, boolean resumed, long lastSeq) {
+		super(name,SessionProtocol.protocolName,Message.Type.Reply);
+		doc.append("sessionToken", sessionToken);
+		doc.append("resumed", resumed);
+		doc.append("lastSeq", lastSeq);
+	}
+	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param sessionToken the token identifying the session
+	 * @param resumed whether an existing session was resumed
+	 * @param lastSeq sequence number of the last event received in the session
+	 * @param initialEvents number of events carried by the request that were delivered
+	 */
+	public SessionStartReply(String sessionToken, boolean resumed, long lastSeq,
+			long initialEvents) {
+		this(sessionToken,resumed,lastSeq);
+		doc.append("initialEvents", initialEvents);
+	}
+	
 	/**
 	 * Initialiser when given message parameters in a doc. Must throw
 	 * InvalidMessag if any of the required parameters are not
@@ -29,7 +60,50 @@ public class SessionStartReply extends Message {
 	 * @throws InvalidMessage when the doc does not contain all of the required parameters
 	 */
 	public SessionStartReply(Document doc) throws InvalidMessage {
-		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
+		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc);
+		if(doc.containsKey("sessionToken")) {
+			Message.validateStringType("sessionToken", doc);
+			Message.validateBooleanType("resumed", doc);
+			Message.validateLongType("lastSeq", doc);
+		}
+		if(doc.containsKey("initialEvents")) Message.validateLongType("initialEvents", doc);
 		this.doc=doc;
 	}
+	
+	/**
+	 * 
+	 * @return the token identifying the session, or null if none was issued
+	 */
+	public String getSessionToken() {
+		return doc.getString("sessionToken");
+	}
+	
+	/**
+	 * 
+	 * @return true if the requested session was resumed
+	 */
+	public boolean isResumed() {
+		return doc.containsKey("resumed") && doc.getBoolean("resumed");
+	}
+	
+	/**
+	 * 
+	 * @return sequence number of the last event the server received
+	 */
+	public long getLastSeq() {
+		if(doc.containsKey("lastSeq"))
+			return doc.getLong("lastSeq");
+		else return 0;
+	}
+	
+	/**
+	 * 
+	 * @return number of the events carried by the start request that the
+	 * server delivered, which is 0 if it doesn't support carrying them
+	 */
+	public long getInitialEvents() {
+		if(doc.containsKey("initialEvents"))
+			return doc.getLong("initialEvents");
+		else return 0;
+	}
 }
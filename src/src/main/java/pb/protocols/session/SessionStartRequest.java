@@ -1,11 +1,24 @@
 package pb.protocols.session;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
+import pb.protocols.event.EventRequest;
 
 /**
- * Message sent to request the session to start.
+ * Message sent to request the session to start. If the client is
+ * reconnecting then it may ask to resume its previous session by giving
+ * the session token it was issued, along with the sequence number of the
+ * last event it received in that session.
+ * <br/>
+ * So that a new session is usable after a single round trip, the request may
+ * also list the protocols the client will run in the session and carry the
+ * first events of the session, e.g. a request for the data the client wants
+ * to display. These are delivered as soon as the session has started, and
+ * the reply says how many were, see {@link SessionStartReply#getInitialEvents()}.
  * @see {@link pb.protocols.session.SessionProtocol}
  * @author aaron
  *
@@ -21,6 +34,55 @@ public class SessionStartRequest extends Message {
 		super(name,SessionProtocol.protocolName,Message.Type.Request);
 	}
 	
+	/**
+	 * Initialiser for a request to resume a session.
+	 * @param sessionToken the token issued when the session first started
+	 * @param lastSeq sequence number of the last event received in the session
+	 */
+	public SessionStartRequest(String sessionToken, long lastSeq) {
+		super(name,SessionProtocol.protocolName,Message.Type.Request);
+		doc.append("sessionToken", sessionToken);
+		doc.append("lastSeq", lastSeq);
+	}
+	
+	/**
+	 * Initialiser for a request to start a new session that also carries the
+	 * protocols the client will run and the first events of the session.
+	 * @param protocols names of the protocols the client will run, or null
+	 * @param initialEvents events to deliver as soon as the session starts, or null
+	 */
+	public SessionStartRequest(List<String> protocols, List<EventRequest> initialEvents) {
+		this();
+		appendHandshake(protocols,initialEvents);
+	}
+	
+	/**
+	 * Initialiser for a request to resume a session that also carries the
+	 * protocols the client will run. Events are never carried by a resume
+	 * request, since the session's own events are replayed instead.
+	 * @param sessionToken the token issued when the session first started
+	 * @param lastSeq sequence number of the last event received in the session
+	 * @param protocols names of the protocols the client will run, or null
+	 */
+	public SessionStartRequest(String sessionToken, long lastSeq, List<String> protocols) {
+		this(sessionToken,lastSeq);
+		appendHandshake(protocols,null);
+	}
+	
+	private void appendHandshake(List<String> protocols, List<EventRequest> initialEvents) {
+		if(protocols!=null) doc.append("protocols", new ArrayList<String>(protocols));
+		if(initialEvents!=null && !initialEvents.isEmpty()) {
+			ArrayList<Document> events = new ArrayList<>();
+			for(EventRequest eventRequest : initialEvents) {
+				Document event = new Document();
+				event.append("eventName", eventRequest.getEventName());
+				event.append("eventData", eventRequest.getEventData());
+				events.add(event);
+			}
+			doc.append("events", events);
+		}
+	}
+	
 	/**
 	 * Initialiser when given message parameters in a doc. Must throw
 	 * InvalidMessag if any of the required parameters are not
@@ -29,7 +91,72 @@ public class SessionStartRequest extends Message {
 	 * @throws InvalidMessage when the doc does not contain all of the required parameters
 	 */
 	public SessionStartRequest(Document doc) throws InvalidMessage {
-		super(name,SessionProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
+		super(name,SessionProtocol.protocolName,Message.Type.Request,doc);
+		if(doc.containsKey("sessionToken")) {
+			Message.validateStringType("sessionToken", doc);
+			Message.validateLongType("lastSeq", doc);
+		}
+		if(doc.containsKey("protocols")) {
+			Message.validateListType("protocols", doc);
+			for(Object protocol : (ArrayList<?>) doc.get("protocols")) {
+				if(!(protocol instanceof String)) throw new InvalidMessage();
+			}
+		}
+		if(doc.containsKey("events")) {
+			Message.validateListType("events", doc);
+			for(Object event : (ArrayList<?>) doc.get("events")) {
+				if(!(event instanceof Document)) throw new InvalidMessage();
+				Message.validateStringType("eventName", (Document) event);
+				Message.validateStringType("eventData", (Document) event);
+			}
+		}
 		this.doc=doc;
 	}
+	
+	/**
+	 * 
+	 * @return the token of the session to resume, or null if this is a new session
+	 */
+	public String getSessionToken() {
+		return doc.getString("sessionToken");
+	}
+	
+	/**
+	 * 
+	 * @return sequence number of the last event the client received
+	 */
+	public long getLastSeq() {
+		if(doc.containsKey("lastSeq"))
+			return doc.getLong("lastSeq");
+		else return 0;
+	}
+	
+	/**
+	 * 
+	 * @return names of the protocols the client will run, or null if the
+	 * client did not say
+	 */
+	public List<String> getProtocols() {
+		if(!doc.containsKey("protocols")) return null;
+		List<String> protocols = new ArrayList<>();
+		for(Object protocol : (ArrayList<?>) doc.get("protocols")) {
+			protocols.add((String) protocol);
+		}
+		return protocols;
+	}
+	
+	/**
+	 * 
+	 * @return events to deliver as soon as the session starts, possibly none
+	 */
+	public List<EventRequest> getInitialEvents() {
+		List<EventRequest> initialEvents = new ArrayList<>();
+		if(!doc.containsKey("events")) return initialEvents;
+		for(Object event : (ArrayList<?>) doc.get("events")) {
+			Document eventDoc = (Document) event;
+			initialEvents.add(new EventRequest(eventDoc.getString("eventName"),
+					eventDoc.getString("eventData")));
+		}
+		return initialEvents;
+	}
 }
@@ -0,0 +1,92 @@
+package pb.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A singleton pool of direct byte buffers, so that frames can be read and
+ * written without allocating a buffer for each message. Buffers come in
+ * size classes, powers of two from {@link Utils#bufferPoolMinSize} up to
+ * {@link Utils#bufferPoolMaxSize}, and each class keeps at most
+ * {@link Utils#bufferPoolMaxPerClass} idle buffers; anything beyond that, or
+ * bigger than the largest class, is allocated and left to the garbage
+ * collector as usual. It must always be accessed statically as
+ * BufferPool.getInstance()...
+ * <br/>
+ * A buffer that has been acquired must be released exactly once, after
+ * which it must no longer be used.
+ *
+ * @author aaron
+ *
+ */
+public class BufferPool {
+	private static BufferPool bufferPool;
+
+	/**
+	 * Idle buffers for each size class, and how many there are.
+	 */
+	private final List<ConcurrentLinkedQueue<ByteBuffer>> idle;
+	private final AtomicInteger[] idleCount;
+
+	private final int minShift;
+
+	private BufferPool() {
+		minShift = 31-Integer.numberOfLeadingZeros(Utils.bufferPoolMinSize);
+		int maxShift = 31-Integer.numberOfLeadingZeros(Utils.bufferPoolMaxSize);
+		idle = new ArrayList<>(maxShift-minShift+1);
+		idleCount = new AtomicInteger[maxShift-minShift+1];
+		for(int i=0;i<idleCount.length;i++) {
+			idle.add(new ConcurrentLinkedQueue<>());
+			idleCount[i]=new AtomicInteger();
+		}
+	}
+
+	public static synchronized BufferPool getInstance() {
+		if(bufferPool==null) bufferPool=new BufferPool();
+		return bufferPool;
+	}
+
+	/**
+	 *
+	 * @param size in bytes
+	 * @return the size class for buffers of the given size, or -1 if it
+	 * is too big for the pool
+	 */
+	private int sizeClass(int size) {
+		if(size<=1<<minShift) return 0;
+		int sizeClass = 32-Integer.numberOfLeadingZeros(size-1)-minShift;
+		return sizeClass<idleCount.length ? sizeClass : -1;
+	}
+
+	/**
+	 * Get a cleared buffer that can hold at least the given number of bytes.
+	 * @param size in bytes
+	 * @return the buffer, with its limit set to its capacity
+	 */
+	public ByteBuffer acquire(int size) {
+		int sizeClass = sizeClass(size);
+		if(sizeClass==-1) return ByteBuffer.allocateDirect(size);
+		ByteBuffer buffer = idle.get(sizeClass).poll();
+		if(buffer==null) return ByteBuffer.allocateDirect(1<<(sizeClass+minShift));
+		idleCount[sizeClass].decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer back to the pool.
+	 * @param buffer that was acquired from the pool
+	 */
+	public void release(ByteBuffer buffer) {
+		int sizeClass = sizeClass(buffer.capacity());
+		if(sizeClass==-1 || buffer.capacity()!=1<<(sizeClass+minShift)) return;
+		if(idleCount[sizeClass].incrementAndGet()>Utils.bufferPoolMaxPerClass) {
+			idleCount[sizeClass].decrementAndGet();
+			return;
+		}
+		idle.get(sizeClass).offer(buffer);
+	}
+}
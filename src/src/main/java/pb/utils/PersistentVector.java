@@ -0,0 +1,223 @@
+package pb.utils;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable vector with structural sharing, as a 32-way trie of the
+ * elements plus a tail array of up to 32 elements. Appending or removing the
+ * last element returns a new vector that shares all but O(log32 n) nodes with
+ * the old one, so every version of a list can be kept, and handed to other
+ * threads, without copying it. Getting an element is O(log32 n), which is at
+ * most a few levels for any realistic size.
+ * <br/>
+ * Null elements are not allowed.
+ *
+ * @param <E> the type of the elements
+ * @author aaron
+ *
+ */
+public final class PersistentVector<E> implements Iterable<E> {
+	private static final int bits = 5;
+	private static final int width = 1 << bits;
+	private static final int mask = width-1;
+
+	private static final Object[] emptyNode = new Object[width];
+
+	@SuppressWarnings("rawtypes")
+	private static final PersistentVector empty =
+			new PersistentVector<>(0,bits,emptyNode,new Object[0]);
+
+	private final int size;
+
+	/**
+	 * Bits to shift an index by to get the slot in the root.
+	 */
+	private final int shift;
+
+	private final Object[] root;
+
+	/**
+	 * The last elements, up to 32, not yet pushed into the trie.
+	 */
+	private final Object[] tail;
+
+	private PersistentVector(int size, int shift, Object[] root, Object[] tail) {
+		this.size=size;
+		this.shift=shift;
+		this.root=root;
+		this.tail=tail;
+	}
+
+	/**
+	 *
+	 * @return the vector with no elements
+	 */
+	@SuppressWarnings("unchecked")
+	public static <E> PersistentVector<E> empty() {
+		return empty;
+	}
+
+	/**
+	 *
+	 * @return the number of elements
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 *
+	 * @return true if there are no elements
+	 */
+	public boolean isEmpty() {
+		return size==0;
+	}
+
+	/**
+	 *
+	 * @return the index of the first element in the tail
+	 */
+	private int tailOffset() {
+		return size<width ? 0 : ((size-1) >>> bits) << bits;
+	}
+
+	/**
+	 *
+	 * @return the leaf array holding element i
+	 */
+	private Object[] arrayFor(int i) {
+		if(i>=tailOffset()) return tail;
+		Object[] node = root;
+		for(int level=shift;level>0;level-=bits) {
+			node = (Object[]) node[(i >>> level) & mask];
+		}
+		return node;
+	}
+
+	/**
+	 *
+	 * @param i
+	 * @return the element at index i
+	 * @throws IndexOutOfBoundsException
+	 */
+	@SuppressWarnings("unchecked")
+	public E get(int i) {
+		if(i<0 || i>=size) throw new IndexOutOfBoundsException("index "+i+" size "+size);
+		return (E) arrayFor(i)[i & mask];
+	}
+
+	/**
+	 *
+	 * @param e
+	 * @return a vector with e appended
+	 */
+	public PersistentVector<E> append(E e) {
+		if(e==null) throw new NullPointerException();
+		if(size-tailOffset()<width) {
+			Object[] newTail = Arrays.copyOf(tail,tail.length+1);
+			newTail[tail.length]=e;
+			return new PersistentVector<>(size+1,shift,root,newTail);
+		}
+		// the tail is full, so push it into the trie
+		Object[] newRoot;
+		int newShift=shift;
+		if((size >>> bits) > (1 << shift)) {
+			// the trie is full, so it gets a new level
+			newRoot = new Object[width];
+			newRoot[0] = root;
+			newRoot[1] = newPath(shift,tail);
+			newShift+=bits;
+		} else {
+			newRoot = pushTail(shift,root,tail);
+		}
+		return new PersistentVector<>(size+1,newShift,newRoot,new Object[] {e});
+	}
+
+	private Object[] pushTail(int level, Object[] parent, Object[] tailNode) {
+		int subidx = ((size-1) >>> level) & mask;
+		Object[] ret = parent.clone();
+		Object[] nodeToInsert;
+		if(level==bits) {
+			nodeToInsert = tailNode;
+		} else {
+			Object[] child = (Object[]) parent[subidx];
+			nodeToInsert = child!=null ? pushTail(level-bits,child,tailNode)
+					: newPath(level-bits,tailNode);
+		}
+		ret[subidx] = nodeToInsert;
+		return ret;
+	}
+
+	private static Object[] newPath(int level, Object[] node) {
+		if(level==0) return node;
+		Object[] ret = new Object[width];
+		ret[0] = newPath(level-bits,node);
+		return ret;
+	}
+
+	/**
+	 *
+	 * @return a vector without the last element
+	 * @throws IllegalStateException if the vector is empty
+	 */
+	public PersistentVector<E> pop() {
+		if(size==0) throw new IllegalStateException("pop of an empty vector");
+		if(size==1) return empty();
+		if(size-tailOffset()>1) {
+			return new PersistentVector<>(size-1,shift,root,Arrays.copyOf(tail,tail.length-1));
+		}
+		// the tail becomes empty, so the last leaf of the trie becomes the tail
+		Object[] newTail = arrayFor(size-2);
+		Object[] newRoot = popTail(shift,root);
+		int newShift=shift;
+		if(newRoot==null) newRoot = emptyNode;
+		if(shift>bits && newRoot[1]==null) {
+			newRoot = (Object[]) newRoot[0];
+			newShift-=bits;
+		}
+		return new PersistentVector<>(size-1,newShift,newRoot,newTail);
+	}
+
+	private Object[] popTail(int level, Object[] node) {
+		int subidx = ((size-2) >>> level) & mask;
+		if(level>bits) {
+			Object[] newChild = popTail(level-bits,(Object[]) node[subidx]);
+			if(newChild==null && subidx==0) return null;
+			Object[] ret = node.clone();
+			ret[subidx] = newChild;
+			return ret;
+		} else if(subidx==0) {
+			return null;
+		} else {
+			Object[] ret = node.clone();
+			ret[subidx] = null;
+			return ret;
+		}
+	}
+
+	/**
+	 * Iterate over the elements in order, a leaf array at a time.
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		return new Iterator<E>() {
+			private int i=0;
+			private Object[] array = size>0 ? arrayFor(0) : null;
+
+			@Override
+			public boolean hasNext() {
+				return i<size;
+			}
+
+			@SuppressWarnings("unchecked")
+			@Override
+			public E next() {
+				if(i>=size) throw new NoSuchElementException();
+				if(i>0 && (i & mask)==0) array = arrayFor(i);
+				return (E) array[i++ & mask];
+			}
+		};
+	}
+}
@@ -35,6 +35,213 @@ public class Utils {
 	 */
 	public static final int chunkSize = 16*1024;
 	
+	/**
+	 * Default number of threads accepting connections on a server socket
+	 */
+	public static final int acceptorThreads = 2;
+	
+	/**
+	 * Default length of the kernel's queue of connections waiting to be accepted
+	 */
+	public static final int acceptBacklog = 512;
+	
+	/**
+	 * Maximum number of accepted connections handed to the server manager at once
+	 */
+	public static final int acceptBatchSize = 64;
+	
+	/**
+	 * Interval in ms between reports of connection accept throughput
+	 */
+	public static final int acceptStatsInterval = 10000;
+	
+	/**
+	 * Time in ms that a forced shutdown waits for endpoints to finish before
+	 * closing them
+	 */
+	public static final int shutdownDrainTimeout = 5000;
+	
+	/**
+	 * Maximum number of threads used to send session stops during a forced shutdown
+	 */
+	public static final int shutdownBroadcastThreads = 16;
+	
+	/**
+	 * Time in ms that a session whose connection was lost is kept, waiting for
+	 * the client to reconnect and resume it
+	 */
+	public static final int sessionResumeTimeout = 60000;
+	
+	/**
+	 * Number of recently sent events kept by a session for replay after a reconnect
+	 */
+	public static final int eventReplayBufferSize = 1024;
+	
+	/**
+	 * Number of times a client retries a lost connection before giving up
+	 */
+	public static final int connectRetries = 10;
+	
+	/**
+	 * Delay in ms before the first retry of a lost connection, doubled for each
+	 * further retry
+	 */
+	public static final int connectRetryBaseDelay = 500;
+	
+	/**
+	 * Maximum delay in ms between retries of a lost connection
+	 */
+	public static final int connectRetryMaxDelay = 30000;
+	
+	/**
+	 * Prefix of addresses of Unix domain sockets, as in "unix:/path/to/socket"
+	 */
+	public static final String unixScheme = "unix:";
+	
+	/**
+	 * Prefix of addresses of servers in the same JVM, as in "local:name"
+	 */
+	public static final String localScheme = "local:";
+	
+	/**
+	 * Bytes written to a connection in the same JVM that the other side has
+	 * not yet read, before writes block, as for a socket send buffer
+	 */
+	public static final int loopbackBufferBytes = 64*1024;
+	
+	/**
+	 * Smallest size in bytes of the buffers in the buffer pool
+	 */
+	public static final int bufferPoolMinSize = 256;
+	
+	/**
+	 * Largest size in bytes of the buffers in the buffer pool, big enough
+	 * for the largest frame
+	 */
+	public static final int bufferPoolMaxSize = 128*1024;
+	
+	/**
+	 * Maximum number of idle buffers kept for each size in the buffer pool
+	 */
+	public static final int bufferPoolMaxPerClass = 64;
+	
+	/**
+	 * Largest distance in pixels a point of a path drawn locally may be from
+	 * the simplified path when it is dropped
+	 */
+	public static final double pathTolerance = 1.0;
+	
+	/**
+	 * Smallest distance in pixels between consecutive points kept in a path
+	 * drawn locally
+	 */
+	public static final double pathMinDistance = 2.0;
+	
+	/**
+	 * Whether paths are smoothed when drawn on the screen
+	 */
+	public static final boolean pathSmoothing = false;
+	
+	/**
+	 * Time in ms that points of a stroke being drawn are batched for before
+	 * they are sent to other peers
+	 */
+	public static final int strokeBatchInterval = 30;
+	
+	/**
+	 * Number of operations kept in the log of a board, for sending peers the
+	 * operations they missed rather than the whole board
+	 */
+	public static final int operationLogSize = 1024;
+	
+	/**
+	 * Size in bytes of the segments of a board journal that are mapped at a time
+	 */
+	public static final int journalSegmentSize = 1024*1024;
+	
+	/**
+	 * Time in ms that appends to a board journal are grouped for before they
+	 * are forced to disk
+	 */
+	public static final int journalForceInterval = 50;
+	
+	/**
+	 * Number of operations in a board journal after which the board is
+	 * snapshotted and the journal emptied
+	 */
+	public static final int journalSnapshotInterval = 1000;
+	
+	/**
+	 * Largest size in characters of a chunk of board data, which has as many
+	 * paths as fit
+	 */
+	public static final int boardDataChunkSize = 16*1024;
+	
+	/**
+	 * Size in pixels of the cells of the grid that indexes the paths of a
+	 * board
+	 */
+	public static final int pathIndexCellSize = 64;
+	
+	/**
+	 * Number of grid cells a path can cover before it is kept apart from the
+	 * grid and checked by every query instead
+	 */
+	public static final int pathIndexMaxCells = 256;
+	
+	/**
+	 * Number of paths between the copies of the drawing area kept so that an
+	 * undo only redraws the paths after the last copy
+	 */
+	public static final int renderCheckpointInterval = 64;
+	
+	/**
+	 * Number of copies of the drawing area kept for undos
+	 */
+	public static final int renderCheckpoints = 8;
+	
+	/**
+	 * Default number of bytes of board images cached so that switching back
+	 * to a board does not draw it from the start
+	 */
+	public static final long rasterCacheBytes = 64L*1024*1024;
+	
+	/**
+	 * Largest number of frames a second drawn on the drawing area
+	 */
+	public static final int maxFrameRate = 60;
+	
+	/**
+	 * Milliseconds between logs of the frame times of the drawing area
+	 */
+	public static final int renderStatsInterval = 10000;
+	
+	/**
+	 * Number of separate regions of the drawing area repainted in a frame
+	 * before they are merged into one
+	 */
+	public static final int maxDirtyRegions = 8;
+	
+	/**
+	 * Size in pixels of the square tiles a board is drawn from
+	 */
+	public static final int tileSize = 256;
+	
+	/**
+	 * Number of bytes of tiles of the board shown that are cached
+	 */
+	public static final long tileCacheBytes = 64L*1024*1024;
+	
+	/**
+	 * Factor by which each step of the mouse wheel zooms the board
+	 */
+	public static final double zoomStep = 1.25;
+	
+	/**
+	 * Number of steps the board can be zoomed in, and out
+	 */
+	public static final int maxZoomSteps = 8;
+	
 	/**
 	 * Use of a single timer object over the entire system helps
 	 * to reduce thread usage.